@@ -31,6 +31,11 @@ public class AppItem implements Comparable<AppItem>, Parcelable {
 
     public SparseBooleanArray uids = new SparseBooleanArray();
     public long total;
+    // total split by foreground/background and direction
+    public long foregroundRxBytes;
+    public long foregroundTxBytes;
+    public long backgroundRxBytes;
+    public long backgroundTxBytes;
 
     public AppItem() {
         this.key = 0;
@@ -44,6 +49,10 @@ public class AppItem implements Comparable<AppItem>, Parcelable {
         key = parcel.readInt();
         uids = parcel.readSparseBooleanArray();
         total = parcel.readLong();
+        foregroundRxBytes = parcel.readLong();
+        foregroundTxBytes = parcel.readLong();
+        backgroundRxBytes = parcel.readLong();
+        backgroundTxBytes = parcel.readLong();
     }
 
     public void addUid(int uid) {
@@ -55,6 +64,10 @@ public class AppItem implements Comparable<AppItem>, Parcelable {
         dest.writeInt(key);
         dest.writeSparseBooleanArray(uids);
         dest.writeLong(total);
+        dest.writeLong(foregroundRxBytes);
+        dest.writeLong(foregroundTxBytes);
+        dest.writeLong(backgroundRxBytes);
+        dest.writeLong(backgroundTxBytes);
     }
 
     @Override
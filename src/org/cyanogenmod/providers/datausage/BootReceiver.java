@@ -26,13 +26,16 @@ public class BootReceiver extends BroadcastReceiver {
     private static final boolean DEBUG = true;
 
     @Override
-    public void onReceive(Context context, Intent intent) {
-        boolean qualified = DataUsageUtils.isDataUsageQualified(context);
-
-        // start DataUsage service once the device boots up, but only if
-        // on qualified network and the service itself is enabled from the Settings->DataUsage
-        if (qualified) {
-            DataUsageUtils.startDataUsageServiceIfEnabled(context);
-        }
+    public void onReceive(final Context context, Intent intent) {
+        DataUsageReceiverExecutor.dispatchCoalesced(this, TAG, new Runnable() {
+            @Override
+            public void run() {
+                // start DataUsage service once the device boots up, but only if
+                // on qualified network and the service itself is enabled from the
+                // Settings->DataUsage, the tracker then pauses and resumes it as the
+                // network changes
+                DataUsageNetworkTracker.getInstance(context).startAndWait();
+            }
+        });
     }
 }
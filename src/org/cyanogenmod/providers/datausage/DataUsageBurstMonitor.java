@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.providers.datausage;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.util.SparseLongArray;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Second, lighter sampling tier between full collection cycles: the few apps whose warning
+ * is active are watched through their own kernel counters every POLL_PERIOD, instead of
+ * holding the device level threshold of the cycle trigger down to the idle bandwidth.
+ *
+ * A suspect that moves its trip bytes since the last full cycle confirms its burst, and a
+ * full cycle is started right away to evaluate it. A suspect that stays idle for QUIET_POLLS
+ * polls is cleared: it is no longer polled, and its trip bytes go back into the device
+ * threshold, so that no sample that could change a detector is ever missed.
+ */
+public class DataUsageBurstMonitor {
+    private static final String TAG = DataUsageBurstMonitor.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final long POLL_PERIOD = 10 * DateUtils.SECOND_IN_MILLIS;
+    private static final int QUIET_POLLS = 3;
+
+    private static DataUsageBurstMonitor sInstance;
+
+    private final Context mContext;
+    private final DataUsageStatsSource mSource;
+    private final Handler mHandler;
+
+    // suspects of the last full cycle, guarded by this
+    private int mSize;
+    private int[] mUids = new int[0];
+    private long[] mTrips = new long[0];
+    private long[] mBaselines = new long[0];
+    private long[] mLastBytes = new long[0];
+    private int[] mQuietPolls = new int[0];
+
+    private long mPolls;
+    private long mConfirmed;
+    private long mCleared;
+
+    private final Runnable mPoll = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+        }
+    };
+
+    public static synchronized DataUsageBurstMonitor getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DataUsageBurstMonitor(context,
+                    new DataUsageStatsSource.TrafficStatsSource());
+        }
+        return sInstance;
+    }
+
+    DataUsageBurstMonitor(Context context, DataUsageStatsSource source) {
+        mContext = context.getApplicationContext();
+        mSource = source;
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Watch the suspects of a full cycle, uid -> trip bytes, until the next one. Returns the
+     * smallest trip bytes of the suspects without a counter of their own, which the device
+     * threshold has to cover, or DataUsageCycleTrigger.NO_THRESHOLD
+     */
+    public synchronized long watch(SparseLongArray suspects) {
+        long uncovered = DataUsageCycleTrigger.NO_THRESHOLD;
+        int count = suspects.size();
+        if (mUids.length < count) {
+            mUids = new int[count];
+            mTrips = new long[count];
+            mBaselines = new long[count];
+            mLastBytes = new long[count];
+            mQuietPolls = new int[count];
+        }
+
+        mSize = 0;
+        for (int i = 0; i < count; i++) {
+            int uid = suspects.keyAt(i);
+            long bytes = uid >= 0 ? mSource.getUidBytes(uid) : -1;
+            if (bytes < 0) {
+                // e.g. the collapsed removed apps or other users
+                uncovered = Math.min(uncovered, suspects.valueAt(i));
+                continue;
+            }
+            mUids[mSize] = uid;
+            mTrips[mSize] = suspects.valueAt(i);
+            mBaselines[mSize] = bytes;
+            mLastBytes[mSize] = bytes;
+            mQuietPolls[mSize] = 0;
+            mSize++;
+        }
+
+        mHandler.removeCallbacks(mPoll);
+        if (mSize > 0) {
+            mHandler.postDelayed(mPoll, POLL_PERIOD);
+        }
+        if (DEBUG) {
+            Log.v(TAG, "watch: suspects:" + Arrays.toString(Arrays.copyOf(mUids, mSize)));
+        }
+        return uncovered;
+    }
+
+    /**
+     * Stop watching, when collection stops
+     */
+    public synchronized void stop() {
+        mSize = 0;
+        mHandler.removeCallbacks(mPoll);
+    }
+
+    private synchronized void poll() {
+        mPolls++;
+        long cleared = DataUsageCycleTrigger.NO_THRESHOLD;
+        int kept = 0;
+        for (int i = 0; i < mSize; i++) {
+            long bytes = mSource.getUidBytes(mUids[i]);
+            if (bytes < mBaselines[i]) {
+                // the counter went away or was reset, leave the app to the device threshold
+                cleared = Math.min(cleared, mTrips[i]);
+                continue;
+            }
+            if (bytes - mBaselines[i] >= mTrips[i]) {
+                confirm(mUids[i]);
+                return;
+            }
+            mQuietPolls[i] = bytes - mLastBytes[i] <= DataUsageEvaluator.MAX_IDLE_BW ?
+                    mQuietPolls[i] + 1 : 0;
+            if (mQuietPolls[i] >= QUIET_POLLS) {
+                mCleared++;
+                cleared = Math.min(cleared, mTrips[i]);
+                if (DEBUG) {
+                    Log.v(TAG, "poll: cleared uid:" + mUids[i]);
+                }
+                continue;
+            }
+            mUids[kept] = mUids[i];
+            mTrips[kept] = mTrips[i];
+            mBaselines[kept] = mBaselines[i];
+            mLastBytes[kept] = bytes;
+            mQuietPolls[kept] = mQuietPolls[i];
+            kept++;
+        }
+        mSize = kept;
+
+        if (cleared != DataUsageCycleTrigger.NO_THRESHOLD) {
+            DataUsageCycleTrigger.getInstance().lowerThreshold(cleared);
+        }
+        if (mSize > 0) {
+            mHandler.postDelayed(mPoll, POLL_PERIOD);
+        }
+    }
+
+    private void confirm(int uid) {
+        mConfirmed++;
+        mSize = 0;
+        if (DEBUG) {
+            Log.v(TAG, "confirm: uid:" + uid);
+        }
+        // the cycle watches the suspects it finds again
+        DataUsageCycleTrigger.getInstance().requestCycle();
+        mContext.startService(new Intent(mContext, DataUsageService.class));
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Burst monitor:");
+        writer.println("  suspects: " + mSize + " polls: " + mPolls +
+                " confirmed: " + mConfirmed + " cleared: " + mCleared);
+    }
+}
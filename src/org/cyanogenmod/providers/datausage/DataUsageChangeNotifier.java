@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+import cyanogenmod.providers.DataUsageContract;
+
+/**
+ * Accumulates the UIDs touched by DataUsageProvider writes and delivers a single, throttled
+ * round of change notifications for them.
+ *
+ * Writes made inside a batch (applyBatch, bulkInsert) are only flushed once the outermost batch
+ * ends, and consecutive flushes are spaced by at least the configured minimum interval, so the
+ * collector rewriting every row once a minute results in one refresh per cycle for observers.
+ *
+ * Per-uid changes are delivered on {@link DataUsageProvider#buildUidUri(int)}; observers that
+ * register on {@link DataUsageContract#CONTENT_URI} must set notifyForDescendants to see them.
+ * When too many UIDs are dirty, or a write could not be attributed to a single UID, a single
+ * notification on {@link DataUsageContract#CONTENT_URI} is sent instead.
+ *
+ * Notifications caused only by the collector's own writes carry
+ * {@link DataUsageProvider#PARAM_SOURCE}={@link DataUsageProvider#SOURCE_COLLECTOR}, so that the
+ * collector can ignore the echo of its own updates.
+ *
+ * Changes are recorded from within the write queue's transactions, so a transaction in
+ * progress holds notifications back like a batch does, and they are only sent once it has
+ * committed: an observer re-querying on a notification always reads the new rows.
+ */
+public class DataUsageChangeNotifier implements DataUsageWriteQueue.WriteListener {
+    private static final String TAG = DataUsageChangeNotifier.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    // above this number of dirty uids, a single table-wide notification is cheaper
+    private static final int MAX_PER_UID_NOTIFICATIONS = 32;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final long mMinIntervalMs;
+
+    // guarded by this, a dirty uid maps to true if it was written by anyone but the collector
+    private final SparseBooleanArray mDirtyUids = new SparseBooleanArray();
+    private boolean mDirtyAll;
+    private boolean mDirtyExternal;
+    private int mBatchDepth;
+    private boolean mFlushPending;
+    private long mLastFlushTime;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public DataUsageChangeNotifier(ContentResolver resolver, long minIntervalMs) {
+        mResolver = resolver;
+        mMinIntervalMs = minIntervalMs;
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Record a change of the row belonging to the specified uid
+     */
+    public synchronized void markDirty(int uid, boolean fromCollector) {
+        mDirtyUids.put(uid, mDirtyUids.get(uid) || !fromCollector);
+        mDirtyExternal |= !fromCollector;
+        scheduleFlushLocked();
+    }
+
+    /**
+     * Record a change that could not be attributed to a single uid
+     */
+    public synchronized void markAllDirty(boolean fromCollector) {
+        mDirtyAll = true;
+        mDirtyExternal |= !fromCollector;
+        scheduleFlushLocked();
+    }
+
+    /**
+     * Defer notifications until the matching {@link #endBatch()}. Batches may nest.
+     */
+    public synchronized void beginBatch() {
+        mBatchDepth++;
+    }
+
+    public synchronized void endBatch() {
+        if (mBatchDepth > 0) {
+            mBatchDepth--;
+        }
+        scheduleFlushLocked();
+    }
+
+    @Override
+    public void onWriteStarted() {
+        beginBatch();
+    }
+
+    @Override
+    public void onWriteFinished() {
+        endBatch();
+    }
+
+    private void scheduleFlushLocked() {
+        if (mBatchDepth > 0 || mFlushPending) {
+            return;
+        }
+        if (!mDirtyAll && mDirtyUids.size() == 0) {
+            return;
+        }
+        long delay = mLastFlushTime + mMinIntervalMs - SystemClock.uptimeMillis();
+        mFlushPending = true;
+        mHandler.postDelayed(mFlushRunnable, delay > 0 ? delay : 0);
+    }
+
+    private void flush() {
+        boolean dirtyAll;
+        boolean dirtyExternal;
+        int[] uids;
+        boolean[] external;
+
+        synchronized (this) {
+            mFlushPending = false;
+            if (mBatchDepth > 0) {
+                // a batch started while we were waiting, endBatch() will reschedule
+                return;
+            }
+            dirtyAll = mDirtyAll || mDirtyUids.size() > MAX_PER_UID_NOTIFICATIONS;
+            dirtyExternal = mDirtyExternal;
+            uids = new int[dirtyAll ? 0 : mDirtyUids.size()];
+            external = new boolean[uids.length];
+            for (int i = 0; i < uids.length; i++) {
+                uids[i] = mDirtyUids.keyAt(i);
+                external[i] = mDirtyUids.valueAt(i);
+            }
+            mDirtyUids.clear();
+            mDirtyAll = false;
+            mDirtyExternal = false;
+            mLastFlushTime = SystemClock.uptimeMillis();
+        }
+
+        if (DEBUG) {
+            Log.v(TAG, "flush: dirtyAll:" + dirtyAll + " uids:" + uids.length);
+        }
+
+        if (dirtyAll) {
+            mResolver.notifyChange(tagSource(DataUsageContract.CONTENT_URI, dirtyExternal),
+                    null, false);
+        } else {
+            for (int i = 0; i < uids.length; i++) {
+                mResolver.notifyChange(tagSource(DataUsageProvider.buildUidUri(uids[i]),
+                        external[i]), null, false);
+            }
+        }
+    }
+
+    private static Uri tagSource(Uri uri, boolean external) {
+        if (external) {
+            return uri;
+        }
+        return uri.buildUpon()
+                .appendQueryParameter(DataUsageProvider.PARAM_SOURCE,
+                        DataUsageProvider.SOURCE_COLLECTOR)
+                .build();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.providers.datausage;
+
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the detector state, so that it survives process death and reboots
+ * without being written to the provider on every sample.
+ *
+ * The file is a header (magic, version, time), then per detector its id and entry count
+ * followed by the fixed size entries, and a trailing CRC32 of everything before it. It is
+ * replaced atomically through AtomicFile and read back in one sequential read; a snapshot
+ * of another version, failing its CRC, or with counts that do not fit its length, is
+ * ignored.
+ */
+public class DataUsageCheckpoint {
+    private static final String TAG = DataUsageCheckpoint.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    static final String FILE_NAME = "datausage_checkpoint";
+    private static final int MAGIC = 0x44554350;
+    private static final int VERSION = 1;
+    // uid, active, bytes, slow avg, slow samples, fast avg, fast samples
+    private static final int ENTRY_SIZE = 4 + 1 + 8 + 8 + 4 + 8 + 4;
+    // id, entry count
+    private static final int DETECTOR_HEADER_SIZE = 4 + 4;
+    private static final int CRC_SIZE = 8;
+
+    private final AtomicFile mFile;
+
+    public DataUsageCheckpoint(File dir) {
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+    }
+
+    /**
+     * Replace the snapshot with the state of detectors, by detector id
+     */
+    public boolean write(SparseArray<DataUsageDetectorTable> detectors) {
+        FileOutputStream stream = null;
+        try {
+            stream = mFile.startWrite();
+            BufferedOutputStream buffer = new BufferedOutputStream(stream);
+            CheckedOutputStream checked = new CheckedOutputStream(buffer, new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(detectors.size());
+            for (int i = 0; i < detectors.size(); i++) {
+                DataUsageDetectorTable detector = detectors.valueAt(i);
+                out.writeInt(detectors.keyAt(i));
+                out.writeInt(detector.size());
+                for (int index = 0; index < detector.size(); index++) {
+                    out.writeInt(detector.uidAt(index));
+                    out.writeBoolean(detector.isActive(index));
+                    out.writeLong(detector.getBytes(index));
+                    out.writeLong(detector.getSlowAvg(index));
+                    out.writeInt(detector.getSlowSamples(index));
+                    out.writeLong(detector.getFastAvg(index));
+                    out.writeInt(detector.getFastSamples(index));
+                }
+            }
+            out.flush();
+
+            new DataOutputStream(buffer).writeLong(checked.getChecksum().getValue());
+            buffer.flush();
+            mFile.finishWrite(stream);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "write failed", e);
+            if (stream != null) {
+                mFile.failWrite(stream);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns the detectors of the snapshot, by detector id, or null if there is no valid one
+     */
+    public SparseArray<DataUsageDetectorTable> read() {
+        byte[] data;
+        try {
+            data = mFile.readFully();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "read failed", e);
+            return null;
+        }
+
+        if (data.length < CRC_SIZE) {
+            Log.w(TAG, "read: truncated checkpoint");
+            return null;
+        }
+        int length = data.length - CRC_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            in.skipBytes(length);
+            if (in.readLong() != crc.getValue()) {
+                Log.w(TAG, "read: checkpoint failed its CRC");
+                return null;
+            }
+
+            in = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+            if (in.readInt() != MAGIC) {
+                Log.w(TAG, "read: not a checkpoint");
+                return null;
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                Log.w(TAG, "read: unsupported version " + version);
+                return null;
+            }
+            long time = in.readLong();
+            int count = in.readInt();
+            if (count < 0 || (long) count * DETECTOR_HEADER_SIZE > in.available()) {
+                Log.w(TAG, "read: corrupt checkpoint");
+                return null;
+            }
+            SparseArray<DataUsageDetectorTable> detectors =
+                    new SparseArray<DataUsageDetectorTable>(count);
+            for (int i = 0; i < count; i++) {
+                int id = in.readInt();
+                int size = in.readInt();
+                if (size < 0 || (long) size * ENTRY_SIZE > in.available()) {
+                    Log.w(TAG, "read: corrupt checkpoint");
+                    return null;
+                }
+                DataUsageDetectorTable detector = new DataUsageDetectorTable();
+                detector.clear(size);
+                for (int entry = 0; entry < size; entry++) {
+                    int uid = in.readInt();
+                    boolean active = in.readBoolean();
+                    long bytes = in.readLong();
+                    long slowAvg = in.readLong();
+                    int slowSamples = in.readInt();
+                    long fastAvg = in.readLong();
+                    int fastSamples = in.readInt();
+                    detector.setState(detector.put(uid), slowAvg, slowSamples, fastAvg,
+                            fastSamples, active, bytes);
+                }
+                detectors.put(id, detector);
+            }
+            if (DEBUG) {
+                Log.v(TAG, "read: detectors:" + count + " written:" + time);
+            }
+            return detectors;
+        } catch (IOException e) {
+            // a valid CRC over a truncated payload
+            Log.w(TAG, "read: corrupt checkpoint", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides whether a collection alarm runs a full cycle (network stats query, detector
+ * evaluation, provider writes) or ends after a poll of the cheap device counters.
+ *
+ * After each full cycle the collector arms a byte threshold: the smallest sample that could
+ * change the outcome of any monitored detector (see DataUsageService#getTripBytes). Since no
+ * app can move more than the whole device, no detector can trip before the device moved that
+ * many bytes since the last full cycle, and until then the alarm is a counter read. A full
+ * cycle also runs when the network changed, when the provider changed, after a counter
+ * reset, and at least every SAFETY_SWEEP_PERIOD to catch what the device counters do not
+ * account like the stats service does.
+ *
+ * Traffic below the threshold is not lost: it is part of the delta seen by the next full
+ * cycle, and bounded by the threshold.
+ *
+ * Apps with an active warning are left out of the threshold, as any traffic of theirs can
+ * change their state. DataUsageBurstMonitor watches their own counters instead, and either
+ * requests a cycle or hands their trip bytes back through {@link #lowerThreshold(long)}.
+ *
+ * A full cycle has a budget of CYCLE_TIME_BUDGET. One that overran it, or deferred apps to
+ * the next cycle, backs the full cycles off: until the backoff expires every alarm is a
+ * poll whatever the counters say, requests and provider changes included. The backoff is at
+ * least the duration of the slow cycle and doubles with each consecutive overrun, so a slow
+ * stats service or database never gets back to back expensive cycles.
+ */
+public class DataUsageCycleTrigger {
+    private static final String TAG = DataUsageCycleTrigger.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    // set to false to run a full cycle on every alarm
+    private static final String THRESHOLD_PROPERTY = "persist.sys.datausage.thresholded";
+    private static final long SAFETY_SWEEP_PERIOD = 15 * DateUtils.MINUTE_IN_MILLIS;
+
+    // time a full cycle may take before it defers the apps it did not get to
+    public static final long CYCLE_TIME_BUDGET = 20 * DateUtils.SECOND_IN_MILLIS;
+    private static final long MAX_BACKOFF = SAFETY_SWEEP_PERIOD;
+
+    // no detector to trip, only the safety sweep and provider changes run a cycle
+    public static final long NO_THRESHOLD = Long.MAX_VALUE;
+    // the cycle found the device idle and did not evaluate the detectors
+    public static final long KEEP_THRESHOLD = -1;
+
+    private static DataUsageCycleTrigger sInstance;
+
+    private final DataUsageStatsSource mSource;
+    private final boolean mEnabled;
+
+    // armed by the last full cycle
+    private int mNetwork = DataUsageStateCache.NETWORK_UNKNOWN;
+    private long mWatermark;
+    private long mThreshold;
+    private long mLastCycle;
+    // counters read by the poll that let the cycle in progress run
+    private long mPolledBytes;
+    // a full cycle was requested since the last one
+    private boolean mRequested;
+    // consecutive full cycles over budget, and the end of the backoff they caused
+    private int mOverrunStreak;
+    private long mBackoffUntil;
+
+    private long mPolls;
+    private long mCycles;
+    private long mSweeps;
+    private long mIdleCycles;
+    private long mOverruns;
+    private long mDeferredApps;
+    private long mBackoffPolls;
+    private long mLastDuration;
+    private long mMaxDuration;
+
+    public static synchronized DataUsageCycleTrigger getInstance() {
+        if (sInstance == null) {
+            sInstance = new DataUsageCycleTrigger(
+                    new DataUsageStatsSource.TrafficStatsSource(), isEnabled());
+        }
+        return sInstance;
+    }
+
+    DataUsageCycleTrigger(DataUsageStatsSource source, boolean enabled) {
+        mSource = source;
+        mEnabled = enabled;
+    }
+
+    /**
+     * Returns the clock all the trigger's times are on, overridden by tests
+     */
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns whether alarms are thresholded, in which case they do not need to be exact
+     */
+    public static boolean isEnabled() {
+        return SystemProperties.getBoolean(THRESHOLD_PROPERTY, true);
+    }
+
+    /**
+     * Poll the device counters, returns whether a full cycle has to run. force is set when
+     * the provider changed since the last cycle
+     */
+    public synchronized boolean shouldRunCycle(int network, boolean force) {
+        mPolls++;
+        long now = now();
+        mPolledBytes = mSource.getDeviceBytes(network);
+
+        boolean run;
+        if (!mEnabled || force || mRequested || network != mNetwork || mPolledBytes < 0 ||
+                mPolledBytes < mWatermark) {
+            // nothing to compare with: first cycle, network change or counter reset
+            run = true;
+        } else if (now - mLastCycle >= SAFETY_SWEEP_PERIOD) {
+            mSweeps++;
+            run = true;
+        } else {
+            run = mPolledBytes - mWatermark >= mThreshold;
+        }
+        if (run && now < mBackoffUntil) {
+            // whatever asked for the cycle stays pending until the backoff expires
+            mBackoffPolls++;
+            run = false;
+        }
+
+        if (DEBUG) {
+            Log.v(TAG, "shouldRunCycle: network:" + network + " moved:" +
+                    (mPolledBytes - mWatermark) + " threshold:" + mThreshold + " run:" + run);
+        }
+        return run;
+    }
+
+    /**
+     * Arm the threshold for the next cycles, after a full cycle on network that took
+     * duration ms and deferred that many apps to the next cycle
+     */
+    public synchronized void onCycleFinished(int network, long threshold, long duration,
+            int deferred) {
+        mCycles++;
+        mLastDuration = duration;
+        mMaxDuration = Math.max(mMaxDuration, duration);
+        if (duration >= CYCLE_TIME_BUDGET || deferred > 0) {
+            mOverruns++;
+            mDeferredApps += deferred;
+            mOverrunStreak = Math.min(mOverrunStreak + 1, 8);
+            long backoff = Math.min(MAX_BACKOFF,
+                    Math.max(duration, DataUsageService.SAMPLE_PERIOD) << (mOverrunStreak - 1));
+            mBackoffUntil = now() + backoff;
+            Log.w(TAG, "Cycle took " + duration + "ms, deferred " + deferred +
+                    " apps, backing off for " + backoff + "ms");
+        } else {
+            mOverrunStreak = 0;
+            mBackoffUntil = 0;
+        }
+        mNetwork = network;
+        mWatermark = mPolledBytes;
+        // deferred apps get the next cycle past the backoff, whatever the counters
+        mRequested = deferred > 0;
+        if (threshold != KEEP_THRESHOLD) {
+            mThreshold = threshold;
+        } else {
+            mIdleCycles++;
+        }
+        mLastCycle = now();
+    }
+
+    /**
+     * Run a full cycle on the next alarm, whatever the device counters
+     */
+    public synchronized void requestCycle() {
+        mRequested = true;
+    }
+
+    /**
+     * Lower the armed threshold to bytes, when a detector left out of it has to be covered
+     * again
+     */
+    public synchronized void lowerThreshold(long bytes) {
+        mThreshold = Math.min(mThreshold, bytes);
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Cycle trigger:");
+        writer.println("  enabled: " + mEnabled + " network: " + mNetwork +
+                " threshold: " + (mThreshold == NO_THRESHOLD ? "none" : mThreshold));
+        writer.println("  polls: " + mPolls + " full cycles: " + mCycles +
+                " safety sweeps: " + mSweeps + " idle: " + mIdleCycles);
+        writer.println("  last/max cycle: " + mLastDuration + "/" + mMaxDuration + "ms" +
+                " overruns: " + mOverruns + " deferred apps: " + mDeferredApps +
+                " backoff polls: " + mBackoffPolls);
+        long backoff = mBackoffUntil - now();
+        if (backoff > 0) {
+            writer.println("  backing off: " + backoff / 1000 + "s left, streak " +
+                    mOverrunStreak);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import java.util.Arrays;
+
+/**
+ * State of one usage detector (the byte baseline and the slow/fast averages) for a set of
+ * uids, kept sorted by uid in parallel primitive arrays. Entries changed since they were
+ * last written to the provider are marked dirty. The bytes of the cycles in which an app was
+ * not evaluated are carried in memory, to decide when it has to be.
+ */
+public class DataUsageDetectorTable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int mSize;
+    private int[] mUids;
+    private boolean[] mActive;
+    private long[] mBytes;
+    private long[] mSlowAvg;
+    private int[] mSlowSamples;
+    private long[] mFastAvg;
+    private int[] mFastSamples;
+    private boolean[] mDirty;
+    // bytes of the cycles skipped since the last evaluation, in memory only
+    private long[] mCarried;
+
+    public DataUsageDetectorTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Drop all entries, sizing the table for the specified number of uids
+     */
+    public void clear(int capacity) {
+        mSize = 0;
+        allocate(Math.max(INITIAL_CAPACITY, capacity));
+    }
+
+    /**
+     * Returns the index of the uid, adding a zeroed entry if needed
+     */
+    public int put(int uid) {
+        int index = indexOfUid(uid);
+        if (index >= 0) {
+            return index;
+        }
+        index = ~index;
+        if (mSize == mUids.length) {
+            grow(mSize * 2);
+        }
+        int count = mSize - index;
+        System.arraycopy(mUids, index, mUids, index + 1, count);
+        System.arraycopy(mActive, index, mActive, index + 1, count);
+        System.arraycopy(mBytes, index, mBytes, index + 1, count);
+        System.arraycopy(mSlowAvg, index, mSlowAvg, index + 1, count);
+        System.arraycopy(mSlowSamples, index, mSlowSamples, index + 1, count);
+        System.arraycopy(mFastAvg, index, mFastAvg, index + 1, count);
+        System.arraycopy(mFastSamples, index, mFastSamples, index + 1, count);
+        System.arraycopy(mDirty, index, mDirty, index + 1, count);
+        System.arraycopy(mCarried, index, mCarried, index + 1, count);
+        mUids[index] = uid;
+        setState(index, 0, 0, 0, 0, false, 0);
+        mDirty[index] = false;
+        mCarried[index] = 0;
+        mSize++;
+        return index;
+    }
+
+    public void remove(int uid) {
+        int index = indexOfUid(uid);
+        if (index < 0) {
+            return;
+        }
+        int count = mSize - index - 1;
+        System.arraycopy(mUids, index + 1, mUids, index, count);
+        System.arraycopy(mActive, index + 1, mActive, index, count);
+        System.arraycopy(mBytes, index + 1, mBytes, index, count);
+        System.arraycopy(mSlowAvg, index + 1, mSlowAvg, index, count);
+        System.arraycopy(mSlowSamples, index + 1, mSlowSamples, index, count);
+        System.arraycopy(mFastAvg, index + 1, mFastAvg, index, count);
+        System.arraycopy(mFastSamples, index + 1, mFastSamples, index, count);
+        System.arraycopy(mDirty, index + 1, mDirty, index, count);
+        System.arraycopy(mCarried, index + 1, mCarried, index, count);
+        mSize--;
+    }
+
+    private void allocate(int capacity) {
+        mUids = new int[capacity];
+        mActive = new boolean[capacity];
+        mBytes = new long[capacity];
+        mSlowAvg = new long[capacity];
+        mSlowSamples = new int[capacity];
+        mFastAvg = new long[capacity];
+        mFastSamples = new int[capacity];
+        mDirty = new boolean[capacity];
+        mCarried = new long[capacity];
+    }
+
+    private void grow(int capacity) {
+        mUids = Arrays.copyOf(mUids, capacity);
+        mActive = Arrays.copyOf(mActive, capacity);
+        mBytes = Arrays.copyOf(mBytes, capacity);
+        mSlowAvg = Arrays.copyOf(mSlowAvg, capacity);
+        mSlowSamples = Arrays.copyOf(mSlowSamples, capacity);
+        mFastAvg = Arrays.copyOf(mFastAvg, capacity);
+        mFastSamples = Arrays.copyOf(mFastSamples, capacity);
+        mDirty = Arrays.copyOf(mDirty, capacity);
+        mCarried = Arrays.copyOf(mCarried, capacity);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int indexOfUid(int uid) {
+        return Arrays.binarySearch(mUids, 0, mSize, uid);
+    }
+
+    public int uidAt(int index) {
+        return mUids[index];
+    }
+
+    public boolean isActive(int index) {
+        return mActive[index];
+    }
+
+    public long getBytes(int index) {
+        return mBytes[index];
+    }
+
+    public long getSlowAvg(int index) {
+        return mSlowAvg[index];
+    }
+
+    public int getSlowSamples(int index) {
+        return mSlowSamples[index];
+    }
+
+    public long getFastAvg(int index) {
+        return mFastAvg[index];
+    }
+
+    public int getFastSamples(int index) {
+        return mFastSamples[index];
+    }
+
+    public boolean isDirty(int index) {
+        return mDirty[index];
+    }
+
+    public void setDirty(int index, boolean dirty) {
+        mDirty[index] = dirty;
+    }
+
+    public long getCarried(int index) {
+        return mCarried[index];
+    }
+
+    public void setCarried(int index, long carried) {
+        mCarried[index] = carried;
+    }
+
+    public void setBytes(int index, long bytes) {
+        mBytes[index] = bytes;
+    }
+
+    public void setState(int index, long slowAvg, int slowSamples, long fastAvg,
+            int fastSamples, boolean active, long bytes) {
+        mSlowAvg[index] = slowAvg;
+        mSlowSamples[index] = slowSamples;
+        mFastAvg[index] = fastAvg;
+        mFastSamples[index] = fastSamples;
+        mActive[index] = active;
+        mBytes[index] = bytes;
+    }
+}
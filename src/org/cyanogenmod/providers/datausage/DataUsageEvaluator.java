@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The warning algorithm of one detector, run over all monitored apps of a cycle.
+ *
+ * A cycle evaluates a detector in three phases: the collector fills the input arrays,
+ * {@link #compute()} runs the algorithm over these primitive arrays only, sharded across a
+ * worker pool when there are enough apps, and the collector then merges the results in
+ * index order and writes them to the provider as a single batch. The result of an app only
+ * depends on its own inputs, so the outcome is the same whatever the number of shards.
+ *
+ * The constants below are the defaults of the apps' monitoring policy, see
+ * DataUsagePolicyTable. An app's policy is loaded into the input arrays with its state.
+ */
+public class DataUsageEvaluator {
+    // quick way to generate warnings
+    // TODO - set to false before releasing
+    private static final boolean FAST_MODE = false;
+
+    // specifies minimum number of samples to collect before running algorithm
+    // 1 hours worth of active traffic to establish a baseline
+    public static final int MIN_SLOW_SAMPLE_COUNT = FAST_MODE ? 5 : 60;
+    // 5 min worth of active traffic
+    public static final int MIN_FAST_SAMPLE_COUNT = FAST_MODE ? 1 : 5;
+
+    // specifies percentage by which fast average must exceed slow avg to trigger a warning
+    // one standard deviation - or should it be 34%, since we are only looking at above and not
+    // below. And how many standard deviations should it be?
+    public static final int WARNING_PERCENTAGE = FAST_MODE ? 10 : 68;
+
+    // specifies maximum bw that is still considered as idle - to discard pings, etc...
+    public static final long MAX_IDLE_BW = 5 * 1024;
+
+    // the sample was not evaluated, only the baseline moves and the bytes are carried
+    public static final int RESULT_SKIP = 0;
+    // idle sample, only the baseline is written
+    public static final int RESULT_BYTES = 1;
+    // the averages changed, the whole state is written
+    public static final int RESULT_STATE = 2;
+
+    // smallest number of apps worth a shard of its own
+    private static final int MIN_SHARD_SIZE = 1024;
+    private static final int MAX_SHARDS = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService sPool;
+
+    // inputs
+    public int size;
+    public boolean rebaseline;
+    public int[] uids;
+    public boolean[] evaluate;
+    public long[] bytes;
+    public long[] baseline;
+    // bytes of the cycles skipped since the last evaluation
+    public long[] carried;
+
+    // monitoring policy
+    public int[] sensitivity;
+    public long[] idleBytes;
+    public int[] minSlowSamples;
+    public int[] minFastSamples;
+    public boolean[] quiet;
+
+    // detector state, updated in place
+    public long[] slowAvg;
+    public int[] slowSamples;
+    public long[] fastAvg;
+    public int[] fastSamples;
+    public boolean[] active;
+
+    // outputs
+    public int[] result;
+    public boolean[] warn;
+    public boolean[] warnFirstTime;
+
+    public DataUsageEvaluator() {
+        allocate(0);
+    }
+
+    /**
+     * Prepare the arrays for size apps
+     */
+    public void reset(int size, boolean rebaseline) {
+        if (uids.length < size) {
+            allocate(size);
+        }
+        this.size = size;
+        this.rebaseline = rebaseline;
+    }
+
+    private void allocate(int capacity) {
+        uids = new int[capacity];
+        evaluate = new boolean[capacity];
+        bytes = new long[capacity];
+        baseline = new long[capacity];
+        carried = new long[capacity];
+        sensitivity = new int[capacity];
+        idleBytes = new long[capacity];
+        minSlowSamples = new int[capacity];
+        minFastSamples = new int[capacity];
+        quiet = new boolean[capacity];
+        slowAvg = new long[capacity];
+        slowSamples = new int[capacity];
+        fastAvg = new long[capacity];
+        fastSamples = new int[capacity];
+        active = new boolean[capacity];
+        result = new int[capacity];
+        warn = new boolean[capacity];
+        warnFirstTime = new boolean[capacity];
+    }
+
+    /**
+     * Copy the state of an app from its detector
+     */
+    public void load(int i, int uid, DataUsageDetectorTable detector, int slot) {
+        uids[i] = uid;
+        baseline[i] = detector.getBytes(slot);
+        bytes[i] = baseline[i];
+        carried[i] = detector.getCarried(slot);
+        slowAvg[i] = detector.getSlowAvg(slot);
+        slowSamples[i] = detector.getSlowSamples(slot);
+        fastAvg[i] = detector.getFastAvg(slot);
+        fastSamples[i] = detector.getFastSamples(slot);
+        active[i] = detector.isActive(slot);
+        evaluate[i] = false;
+    }
+
+    /**
+     * Copy the monitoring policy of the app loaded at i, hour being the local hour of day
+     * of the cycle. The sample counts are the windows of the averages and never exceed the
+     * minimums, so once the state is loaded they are clamped to a minimum lowered since
+     */
+    public void loadPolicy(int i, DataUsagePolicyTable policies, int hour) {
+        int slot = policies.indexOfUid(uids[i]);
+        if (slot < 0) {
+            sensitivity[i] = WARNING_PERCENTAGE;
+            idleBytes[i] = MAX_IDLE_BW;
+            minSlowSamples[i] = MIN_SLOW_SAMPLE_COUNT;
+            minFastSamples[i] = MIN_FAST_SAMPLE_COUNT;
+            quiet[i] = false;
+        } else {
+            int value = policies.getSensitivity(slot);
+            sensitivity[i] = value > 0 ? value : WARNING_PERCENTAGE;
+            long idle = policies.getIdleBytes(slot);
+            idleBytes[i] = idle > 0 ? idle : MAX_IDLE_BW;
+            value = policies.getMinSamples(slot);
+            minSlowSamples[i] = value > 0 ? value : MIN_SLOW_SAMPLE_COUNT;
+            // the fast average never needs more samples than the slow one
+            minFastSamples[i] = Math.min(MIN_FAST_SAMPLE_COUNT, minSlowSamples[i]);
+            quiet[i] = (policies.getQuietHours(slot) & (1 << hour)) != 0;
+        }
+        slowSamples[i] = Math.min(slowSamples[i], minSlowSamples[i]);
+        fastSamples[i] = Math.min(fastSamples[i], minFastSamples[i]);
+    }
+
+    /**
+     * Returns the bytes an app moved this cycle, since its baseline, 0 if there is no
+     * baseline yet
+     */
+    public long getBytesDelta(int i) {
+        return rebaseline || baseline[i] == 0 ? 0 : bytes[i] - baseline[i];
+    }
+
+    /**
+     * Returns the smallest sample that changes the state of the detector of app i: any
+     * sample above its idle bytes while it is still learning its averages, and afterwards the
+     * sample that takes the fast average past the warning bound, or the sample that clears
+     * an active warning
+     */
+    public long getTripBytes(int i) {
+        if (active[i] || slowSamples[i] < minSlowSamples[i] ||
+                fastSamples[i] < minFastSamples[i]) {
+            return idleBytes[i];
+        }
+        long bound = slowAvg[i] * (100 + sensitivity[i]) / 100;
+        long trip = fastSamples[i] * bound - fastAvg[i] * (fastSamples[i] - 1);
+        return Math.max(idleBytes[i], trip);
+    }
+
+    /**
+     * Returns the bytes app i moved since it was last evaluated: the skipped cycles carried
+     * and this one
+     */
+    public long getPendingBytes(int i) {
+        return carried[i] + Math.max(0, getBytesDelta(i));
+    }
+
+    /**
+     * Returns the bytes app i carries to the next cycle. A skipped sample adds its bytes,
+     * an evaluated one starts over
+     */
+    public long getNextCarried(int i) {
+        return result[i] == RESULT_SKIP ? getPendingBytes(i) : 0;
+    }
+
+    /**
+     * Returns the bytes app i can still move before it has to be evaluated, which is its
+     * trip bytes less the bytes it carries
+     */
+    public long getRemainingTripBytes(int i) {
+        return Math.max(0, getTripBytes(i) - getNextCarried(i));
+    }
+
+    /**
+     * Run the algorithm for all apps, blocks until done
+     */
+    public void compute() {
+        computeSharded(Math.max(1, Math.min(MAX_SHARDS, size / MIN_SHARD_SIZE)));
+    }
+
+    /**
+     * Run the algorithm for all apps split in that many shards, blocks until done
+     */
+    void computeSharded(int shards) {
+        if (shards == 1) {
+            compute(0, size);
+            return;
+        }
+
+        ExecutorService pool = getPool();
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            final int from = (int) ((long) size * shard / shards);
+            final int to = (int) ((long) size * (shard + 1) / shards);
+            futures.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    compute(from, to);
+                }
+            }));
+        }
+
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (sPool == null) {
+            sPool = Executors.newFixedThreadPool(MAX_SHARDS, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, DataUsageEvaluator.class.getSimpleName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sPool;
+    }
+
+    private void compute(int from, int to) {
+        for (int i = from; i < to; i++) {
+            warn[i] = false;
+            warnFirstTime[i] = false;
+            if (!evaluate[i]) {
+                result[i] = RESULT_SKIP;
+                continue;
+            }
+
+            long bytesDelta = getBytesDelta(i);
+            if (bytesDelta <= idleBytes[i]) {
+                // not enough BW consumed during this sample - simply update bytes
+                result[i] = RESULT_BYTES;
+                continue;
+            }
+
+            // enough BW consumed during this sample - evaluate algorithm
+            result[i] = RESULT_STATE;
+            if (slowSamples[i] < minSlowSamples[i]) {
+                // not enough samples acquired for the slow average, keep accumulating
+                // samples
+                slowAvg[i] = computeAvg(slowAvg[i], slowSamples[i], minSlowSamples[i],
+                        bytesDelta);
+                slowSamples[i]++;
+
+                // fast average requires fewer samples than slow average, so at this point
+                // we may have accumulated enough or not, need to check
+                fastAvg[i] = computeAvg(fastAvg[i], fastSamples[i], minFastSamples[i],
+                        bytesDelta);
+                if (fastSamples[i] < minFastSamples[i]) {
+                    fastSamples[i]++;
+                }
+                active[i] = false;
+            } else {
+                // enough samples acquired for the average, evaluate warning algorithm
+                float avgExceedPercent = fastAvg[i] - slowAvg[i];
+                avgExceedPercent /= slowAvg[i];
+                avgExceedPercent *= 100;
+
+                if ((fastAvg[i] > slowAvg[i]) && (avgExceedPercent > sensitivity[i])) {
+                    // in quiet hours no warning is raised, an active one stays as is
+                    if (!quiet[i]) {
+                        warn[i] = true;
+                        warnFirstTime[i] = !active[i];
+                        active[i] = true;
+                    }
+                } else {
+                    active[i] = false;
+                }
+                slowAvg[i] = computeAvg(slowAvg[i], slowSamples[i], minSlowSamples[i],
+                        bytesDelta);
+                fastAvg[i] = computeAvg(fastAvg[i], fastSamples[i], minFastSamples[i],
+                        bytesDelta);
+            }
+        }
+    }
+
+    static long computeAvg(long avg, int samples, int min_samples, long delta) {
+        float temp;
+
+        if (samples < min_samples) {
+            temp = avg * samples;
+            temp += delta;
+            temp /= (samples + 1);
+            return (long)temp;
+        } else {
+            temp = avg * (samples - 1);
+            temp += delta;
+            temp /= samples;
+            return (long)temp;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.providers.datausage;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.JsonReader;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import cyanogenmod.providers.DataUsageContract;
+
+/**
+ * Streams a CSV export of the provider through a pipe: datausage/export[?table=state|samples]
+ * [&min_uid=<uid>][&max_uid=<uid>].
+ *
+ * The state table has a line per app and detector, the samples table a line per sample kept
+ * in the EXTRA column. A writer thread reads the database a page at a time along the uid
+ * index, and the blocking writes into the pipe hold it back while the reader lags, so the
+ * memory used is one page whatever the size of the export. At most MAX_EXPORTS run at once.
+ */
+public class DataUsageExporter {
+    private static final String TAG = DataUsageExporter.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_EXPORTS = 2;
+    static final int STATE_PAGE_SIZE = 256;
+    // the EXTRA of a row holds up to a thousand samples
+    static final int SAMPLES_PAGE_SIZE = 16;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            0, MAX_EXPORTS, 30, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG);
+                }
+            });
+
+    private final SQLiteOpenHelper mOpenHelper;
+
+    public DataUsageExporter(SQLiteOpenHelper openHelper) {
+        mOpenHelper = openHelper;
+    }
+
+    /**
+     * Start the export described by uri, returns the read side of its pipe
+     */
+    public ParcelFileDescriptor export(Uri uri) throws FileNotFoundException {
+        final boolean samples;
+        String table = uri.getQueryParameter(DataUsageProvider.PARAM_TABLE);
+        if (table == null || DataUsageProvider.TABLE_STATE.equals(table)) {
+            samples = false;
+        } else if (DataUsageProvider.TABLE_SAMPLES.equals(table)) {
+            samples = true;
+        } else {
+            throw new IllegalArgumentException("Invalid table in URI: " + uri);
+        }
+        final long minUid = parseUid(uri, DataUsageProvider.PARAM_MIN_UID, Integer.MIN_VALUE);
+        final long maxUid = parseUid(uri, DataUsageProvider.PARAM_MAX_UID, Integer.MAX_VALUE);
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Cannot create pipe: " + e.getMessage());
+        }
+
+        try {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(pipe[1], samples, minUid, maxUid);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            closeQuietly(pipe[0]);
+            closeQuietly(pipe[1]);
+            throw new FileNotFoundException(MAX_EXPORTS + " exports already in progress");
+        }
+        return pipe[0];
+    }
+
+    private static long parseUid(Uri uri, String param, long defaultValue) {
+        String value = uri.getQueryParameter(param);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + param + " in URI: " + uri);
+        }
+    }
+
+    private void write(ParcelFileDescriptor fd, boolean samples, long minUid, long maxUid) {
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new ParcelFileDescriptor.AutoCloseOutputStream(fd), StandardCharsets.UTF_8));
+        try {
+            if (samples) {
+                writeSamples(out, minUid, maxUid);
+            } else {
+                writeState(out, minUid, maxUid);
+            }
+            out.close();
+        } catch (IOException e) {
+            // most likely the reader went away, let it know otherwise
+            Log.w(TAG, "export failed: " + e.getMessage());
+            try {
+                fd.closeWithError(e.getMessage());
+            } catch (IOException ignored) {
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "export failed", e);
+            try {
+                fd.closeWithError(e.getMessage());
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void writeState(Writer out, long minUid, long maxUid) throws IOException {
+        out.write("uid,detector,enable,active,bytes,slow_avg,slow_samples,fast_avg," +
+                "fast_samples\n");
+        int home = DataUsageStateCache.detectorId(DataUsageUtils.NETWORK_MOBILE,
+                DataUsageStateCache.DIMENSION_TOTAL);
+        String[] columns = new String[] {
+                DataUsageContract._ID, DataUsageContract.UID, DataUsageContract.ENABLE,
+                DataUsageContract.ACTIVE, DataUsageContract.BYTES, DataUsageContract.SLOW_AVG,
+                DataUsageContract.SLOW_SAMPLES, DataUsageContract.FAST_AVG,
+                DataUsageContract.FAST_SAMPLES
+        };
+        String[] detectorColumns = new String[] {
+                DataUsageContract.UID, DataUsageProvider.DETECTOR, DataUsageContract.ACTIVE,
+                DataUsageContract.BYTES, DataUsageContract.SLOW_AVG,
+                DataUsageContract.SLOW_SAMPLES, DataUsageContract.FAST_AVG,
+                DataUsageContract.FAST_SAMPLES
+        };
+
+        PageCursor pages = new PageCursor(columns, minUid, maxUid, STATE_PAGE_SIZE);
+        Cursor page;
+        StringBuilder line = new StringBuilder();
+        // the rows of a uid may span two pages, its detectors are written with the first one
+        int lastUid = 0;
+        boolean first = true;
+        while ((page = pages.next()) != null) {
+            // the detector rows of the page's uid range, merged in by uid
+            long fromUid = first ? pages.getFirstUid() :
+                    Math.max(pages.getFirstUid(), (long) lastUid + 1);
+            Cursor detectors = mOpenHelper.getReadableDatabase().query(
+                    DataUsageProvider.DETECTOR_TABLE, detectorColumns,
+                    DataUsageContract.UID + " BETWEEN ? AND ?",
+                    new String[] { String.valueOf(fromUid),
+                            String.valueOf(pages.getLastUid()) },
+                    null, null, DataUsageContract.UID + ", " + DataUsageProvider.DETECTOR);
+            boolean hasDetector = detectors.moveToFirst();
+            try {
+                while (page.moveToNext()) {
+                    int uid = page.getInt(1);
+                    line.setLength(0);
+                    line.append(uid).append(',').append(home).append(',')
+                            .append(page.getInt(2));
+                    appendState(line, page, 3);
+                    out.write(line.toString());
+                    if (!first && uid == lastUid) {
+                        // duplicate row, its detectors were written with the first one
+                        continue;
+                    }
+                    first = false;
+                    lastUid = uid;
+                    while (hasDetector && detectors.getInt(0) <= uid) {
+                        if (detectors.getInt(0) == uid) {
+                            line.setLength(0);
+                            line.append(uid).append(',').append(detectors.getInt(1))
+                                    .append(',');
+                            appendState(line, detectors, 2);
+                            out.write(line.toString());
+                        }
+                        hasDetector = detectors.moveToNext();
+                    }
+                }
+            } finally {
+                detectors.close();
+                page.close();
+            }
+        }
+    }
+
+    /**
+     * Append active, bytes, slow avg/samples and fast avg/samples, read from column on
+     */
+    private static void appendState(StringBuilder line, Cursor cursor, int column) {
+        line.append(',').append(cursor.getInt(column))
+                .append(',').append(cursor.getLong(column + 1))
+                .append(',').append(cursor.getLong(column + 2))
+                .append(',').append(cursor.getInt(column + 3))
+                .append(',').append(cursor.getLong(column + 4))
+                .append(',').append(cursor.getInt(column + 5))
+                .append('\n');
+    }
+
+    private void writeSamples(Writer out, long minUid, long maxUid) throws IOException {
+        out.write("uid,sample,bytes\n");
+        String[] columns = new String[] {
+                DataUsageContract._ID, DataUsageContract.UID, DataUsageContract.EXTRA
+        };
+
+        PageCursor pages = new PageCursor(columns, minUid, maxUid, SAMPLES_PAGE_SIZE);
+        Cursor page;
+        while ((page = pages.next()) != null) {
+            try {
+                while (page.moveToNext()) {
+                    String extra = page.getString(2);
+                    if (extra == null || extra.isEmpty()) {
+                        continue;
+                    }
+                    writeSamples(out, page.getInt(1), extra);
+                }
+            } finally {
+                page.close();
+            }
+        }
+    }
+
+    /**
+     * Write the samples of an EXTRA, as they are parsed
+     */
+    private static void writeSamples(Writer out, int uid, String extra) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(extra));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"samples".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                int index = 0;
+                while (reader.hasNext()) {
+                    out.write(uid + "," + index++ + "," + reader.nextLong() + "\n");
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            if (DEBUG) {
+                Log.v(TAG, "writeSamples: malformed extra of uid:" + uid);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Pages of the datausage table in (uid, _id) order, each starting after the last row of
+     * the previous one. Columns must start with _id and uid.
+     */
+    private class PageCursor {
+        private final String[] mColumns;
+        private final String mLimit;
+        private final long mMaxUid;
+        private long mAfterUid;
+        private long mAfterId = -1;
+        private int mFirstUid;
+        private int mLastUid;
+        private boolean mDone;
+
+        PageCursor(String[] columns, long minUid, long maxUid, int pageSize) {
+            mColumns = columns;
+            mLimit = String.valueOf(pageSize);
+            mAfterUid = minUid;
+            mMaxUid = maxUid;
+        }
+
+        /**
+         * Returns the next page, positioned before its first row, or null after the last
+         */
+        Cursor next() {
+            if (mDone) {
+                return null;
+            }
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            String uid = DataUsageContract.UID;
+            Cursor cursor = db.query(DataUsageContract.DATAUSAGE_TABLE, mColumns,
+                    "(" + uid + " > ? OR (" + uid + " = ? AND " + DataUsageContract._ID +
+                            " > ?)) AND " + uid + " <= ?",
+                    new String[] { String.valueOf(mAfterUid), String.valueOf(mAfterUid),
+                            String.valueOf(mAfterId), String.valueOf(mMaxUid) },
+                    null, null, uid + ", " + DataUsageContract._ID, mLimit);
+            if (cursor == null || !cursor.moveToFirst()) {
+                mDone = true;
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return null;
+            }
+            mFirstUid = cursor.getInt(1);
+            cursor.moveToLast();
+            mLastUid = cursor.getInt(1);
+            mAfterUid = mLastUid;
+            mAfterId = cursor.getLong(0);
+            mDone = cursor.getCount() < Integer.parseInt(mLimit);
+            cursor.moveToPosition(-1);
+            return cursor;
+        }
+
+        int getFirstUid() {
+            return mFirstUid;
+        }
+
+        int getLastUid() {
+            return mLastUid;
+        }
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor fd) {
+        try {
+            fd.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.providers.datausage;
+
+import android.text.format.DateUtils;
+
+import java.util.Calendar;
+
+/**
+ * Streaming forecast of the bytes used by the end of a billing cycle, as a Holt linear
+ * trend model of the usage rate: a level, the smoothed bytes per day, and a trend, the
+ * change of the level per day. Samples arrive at irregular intervals, so the smoothing
+ * factors are derived from the time each sample covers, which makes one sample over an hour
+ * and sixty samples over its minutes equivalent.
+ *
+ * The state is two longs and the time of the last sample, updated in O(1) per sample, and a
+ * projection only needs that state and the bytes used so far in the cycle.
+ */
+public final class DataUsageForecast {
+    // time constants of the level and of the trend
+    private static final double LEVEL_TAU = DateUtils.DAY_IN_MILLIS;
+    private static final double TREND_TAU = 7 * DateUtils.DAY_IN_MILLIS;
+    private static final double DAY = DateUtils.DAY_IN_MILLIS;
+
+    // the limit is not reached by the end of the cycle
+    public static final long NO_OVERRUN = -1;
+
+    private DataUsageForecast() {
+    }
+
+    /**
+     * Returns the level after a sample of bytes moved over elapsed milliseconds
+     */
+    public static long nextLevel(long level, long trend, long bytes, long elapsed) {
+        double alpha = 1 - Math.exp(-elapsed / LEVEL_TAU);
+        double rate = bytes * DAY / elapsed;
+        double predicted = level + trend * (elapsed / DAY);
+        return Math.max(0, Math.round(alpha * rate + (1 - alpha) * predicted));
+    }
+
+    /**
+     * Returns the trend after the level moved from level to nextLevel over elapsed
+     * milliseconds
+     */
+    public static long nextTrend(long level, long nextLevel, long trend, long elapsed) {
+        double beta = 1 - Math.exp(-elapsed / TREND_TAU);
+        return Math.round(beta * (nextLevel - level) * DAY / elapsed + (1 - beta) * trend);
+    }
+
+    /**
+     * Returns the start of the billing cycle following the one containing now
+     */
+    public static long getCycleEnd(Calendar now, int cycleDay) {
+        int next = DataUsageQuotaTable.getMonthlyPeriod(now, cycleDay) + 1;
+        Calendar end = (Calendar) now.clone();
+        end.clear();
+        end.set(next / 12, next % 12, 1);
+        end.set(Calendar.DAY_OF_MONTH, Math.max(1, Math.min(cycleDay,
+                end.getActualMaximum(Calendar.DAY_OF_MONTH))));
+        return end.getTimeInMillis();
+    }
+
+    /**
+     * Returns the level of a forecast whose last sample is idle milliseconds old: the rate
+     * of the time without samples is zero, as a sample would have been taken otherwise
+     */
+    private static double currentLevel(long level, long idle) {
+        return idle > 0 ? level * Math.exp(-idle / LEVEL_TAU) : level;
+    }
+
+    /**
+     * Returns the bytes used remaining milliseconds from now, on top of the used bytes
+     */
+    public static long project(long used, long level, long trend, long idle, long remaining) {
+        return used + Math.round(integrate(currentLevel(level, idle), trend, remaining / DAY));
+    }
+
+    /**
+     * Returns the milliseconds from now until the used bytes reach limit, or NO_OVERRUN if
+     * not within the remaining milliseconds
+     */
+    public static long getOverrun(long used, long limit, long level, long trend, long idle,
+            long remaining) {
+        if (used >= limit) {
+            return 0;
+        }
+        double rate = currentLevel(level, idle);
+        double days = remaining / DAY;
+        double left = limit - used;
+        if (integrate(rate, trend, days) < left) {
+            return NO_OVERRUN;
+        }
+        // the usage is reached within the cycle, solve trend / 2 * t^2 + rate * t = left
+        double t;
+        if (trend == 0) {
+            t = left / rate;
+        } else {
+            double discriminant = rate * rate + 2 * trend * left;
+            t = (-rate + Math.sqrt(Math.max(0, discriminant))) / trend;
+        }
+        return Math.max(0, Math.min(remaining, Math.round(t * DAY)));
+    }
+
+    /**
+     * Returns the bytes moved over days at a rate of level bytes per day, changing by trend
+     * per day, and never going below zero
+     */
+    private static double integrate(double level, long trend, double days) {
+        if (days <= 0 || level <= 0 && trend <= 0) {
+            return 0;
+        }
+        if (trend < 0) {
+            days = Math.min(days, -level / trend);
+        }
+        return level * days + trend * days * days / 2;
+    }
+}
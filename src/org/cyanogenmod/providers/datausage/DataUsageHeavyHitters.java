@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.util.SparseIntArray;
+
+import java.util.Arrays;
+
+/**
+ * Weighted Space-Saving sketch of the apps moving the most bytes, fed with per cycle deltas.
+ *
+ * At most CAPACITY apps are counted at a time. An app not counted yet takes over the slot of
+ * the smallest counter and continues from its count, so a count never under-estimates an
+ * app's bytes, and any app that moved more than 1 / CAPACITY of all the bytes since the last
+ * decay is guaranteed to hold a slot. Counters are halved every DECAY_CYCLES cycles so the
+ * sketch follows changes of the usage pattern.
+ */
+public class DataUsageHeavyHitters {
+    private static final int CAPACITY = 64;
+    private static final int TOP_COUNT = 16;
+    private static final int DECAY_CYCLES = 60;
+
+    private final int[] mKeys = new int[CAPACITY];
+    private final long[] mCounts = new long[CAPACITY];
+    // key -> slot
+    private final SparseIntArray mSlots = new SparseIntArray(CAPACITY);
+    private int mSize;
+    private int mCycles;
+    // smallest count of the current top apps, set by endCycle()
+    private long mTopCount = Long.MAX_VALUE;
+
+    /**
+     * Count bytes moved by an app during this cycle
+     */
+    public void offer(int key, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        int slot = mSlots.get(key, -1);
+        if (slot < 0) {
+            if (mSize < CAPACITY) {
+                slot = mSize++;
+                mCounts[slot] = 0;
+            } else {
+                slot = minSlot();
+                // the new app keeps the evicted count, as an upper bound of its own bytes
+                mSlots.delete(mKeys[slot]);
+            }
+            mKeys[slot] = key;
+            mSlots.put(key, slot);
+        }
+        mCounts[slot] += bytes;
+    }
+
+    private int minSlot() {
+        int min = 0;
+        for (int i = 1; i < mSize; i++) {
+            if (mCounts[i] < mCounts[min]) {
+                min = i;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Rank the apps after all deltas of the cycle were offered
+     */
+    public void endCycle() {
+        // decay first, the rank has to hold for the counts isTop() compares it with
+        if (++mCycles % DECAY_CYCLES == 0) {
+            for (int i = 0; i < mSize; i++) {
+                mCounts[i] /= 2;
+            }
+        }
+
+        if (mSize <= TOP_COUNT) {
+            mTopCount = 1;
+        } else {
+            long[] counts = Arrays.copyOf(mCounts, mSize);
+            Arrays.sort(counts);
+            mTopCount = Math.max(1, counts[mSize - TOP_COUNT]);
+        }
+    }
+
+    /**
+     * Returns whether the app is one of the TOP_COUNT largest consumers
+     */
+    public boolean isTop(int key) {
+        int slot = mSlots.get(key, -1);
+        return slot >= 0 && mCounts[slot] >= mTopCount;
+    }
+
+    /**
+     * Returns the upper bound of the bytes counted for an app, 0 if not counted
+     */
+    public long getCount(int key) {
+        int slot = mSlots.get(key, -1);
+        return slot >= 0 ? mCounts[slot] : 0;
+    }
+}
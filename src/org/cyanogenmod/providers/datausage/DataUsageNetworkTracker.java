@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tracks whether the device is on a network qualified for data usage collection (connected,
+ * mobile and metered) and pauses or resumes the collection alarm accordingly.
+ *
+ * Network changes are debounced with hysteresis: becoming qualified must hold for
+ * QUALIFY_DELAY before collection resumes, and losing qualification must hold for the longer
+ * UNQUALIFY_DELAY before it pauses, so a Wi-Fi handover or a flapping cellular link does not
+ * reprogram the alarm on every transition. The qualification state is transient and kept in
+ * memory only, the user's enable preference is never written from here. Capability changes
+ * that qualification does not read, such as signal strength or bandwidth updates, are
+ * dropped before they reach the debounce.
+ */
+public class DataUsageNetworkTracker {
+    private static final String TAG = DataUsageNetworkTracker.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final long QUALIFY_DELAY = 5 * 1000;
+    private static final long UNQUALIFY_DELAY = 30 * 1000;
+
+    // what qualification reads of a network, validation deciding which one is the default
+    private static final int QUALIFY_INTERNET = 1 << 0;
+    private static final int QUALIFY_NOT_METERED = 1 << 1;
+    private static final int QUALIFY_VALIDATED = 1 << 2;
+    private static final int QUALIFY_CELLULAR = 1 << 3;
+    private static final int QUALIFY_WIFI = 1 << 4;
+    private static final int QUALIFY_ROAMING = 1 << 5;
+
+    private static DataUsageNetworkTracker sInstance;
+
+    private final Context mContext;
+    private final ConnectivityManager mConnectivityManager;
+    private final Handler mHandler;
+
+    // only accessed on mHandler's thread, but for isQualified(), which reads false until
+    // start() got to run
+    private volatile boolean mQualified;
+    private boolean mRegistered;
+    private boolean mPending;
+    private boolean mPendingTarget;
+    private long mTransitions;
+    private long mSuppressed;
+    private long mLastTransition;
+
+    // the QUALIFY_* state last seen of each network, only accessed on the callback thread
+    private final HashMap<Network, Integer> mNetworkStates = new HashMap<Network, Integer>();
+    private volatile long mIgnoredChanges;
+
+    private final ConnectivityManager.NetworkCallback mCallback =
+            new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(Network network) {
+            postEvaluate();
+        }
+
+        @Override
+        public void onLost(Network network) {
+            mNetworkStates.remove(network);
+            postEvaluate();
+        }
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            // a network may become metered, or lose the default route, without coming or
+            // going, but most changes are link updates qualification does not depend on
+            int state = getNetworkState(network, capabilities);
+            Integer last = mNetworkStates.put(network, state);
+            if (last != null && last == state) {
+                mIgnoredChanges++;
+                return;
+            }
+            postEvaluate();
+        }
+    };
+
+    private final Runnable mEvaluate = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+        }
+    };
+
+    private final Runnable mApply = new Runnable() {
+        @Override
+        public void run() {
+            apply();
+        }
+    };
+
+    private final Runnable mStart = new Runnable() {
+        @Override
+        public void run() {
+            handleStart();
+        }
+    };
+
+    public static synchronized DataUsageNetworkTracker getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DataUsageNetworkTracker(context);
+        }
+        return sInstance;
+    }
+
+    private DataUsageNetworkTracker(Context context) {
+        mContext = context.getApplicationContext();
+        mConnectivityManager = (ConnectivityManager) mContext.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Start tracking, if not already started, and bring the collection alarm in line with
+     * the current network, on the tracker's thread
+     */
+    public void start() {
+        mHandler.post(mStart);
+    }
+
+    /**
+     * Same as start(), but returns only once the collection alarm is in line with the
+     * current network, for a receiver that must keep its broadcast alive until then
+     */
+    public void startAndWait() {
+        final CountDownLatch started = new CountDownLatch(1);
+        mHandler.post(mStart);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+            }
+        });
+        try {
+            started.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleStart() {
+        if (!mRegistered) {
+            mConnectivityManager.registerNetworkCallback(
+                    new NetworkRequest.Builder()
+                            .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                            .build(),
+                    mCallback);
+            mRegistered = true;
+        }
+        mHandler.removeCallbacks(mApply);
+        mPending = false;
+        mQualified = DataUsageUtils.isDataUsageQualified(mContext);
+        mLastTransition = SystemClock.elapsedRealtime();
+        if (mQualified) {
+            DataUsageUtils.startDataUsageServiceIfEnabled(mContext);
+        } else {
+            DataUsageUtils.startDataUsageService(mContext, false);
+        }
+        if (DEBUG) {
+            Log.v(TAG, "start: qualified:" + mQualified);
+        }
+    }
+
+    /**
+     * Returns the debounced qualification state
+     */
+    public boolean isQualified() {
+        return mQualified;
+    }
+
+    private int getNetworkState(Network network, NetworkCapabilities capabilities) {
+        int state = 0;
+        if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)) {
+            state |= QUALIFY_INTERNET;
+        }
+        if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)) {
+            state |= QUALIFY_NOT_METERED;
+        }
+        if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)) {
+            state |= QUALIFY_VALIDATED;
+        }
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            state |= QUALIFY_CELLULAR;
+        }
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            state |= QUALIFY_WIFI;
+        }
+        // roaming is not a capability on this platform, it comes with the network info
+        NetworkInfo info = mConnectivityManager.getNetworkInfo(network);
+        if (info != null && info.isRoaming()) {
+            state |= QUALIFY_ROAMING;
+        }
+        return state;
+    }
+
+    private void postEvaluate() {
+        mHandler.post(mEvaluate);
+    }
+
+    private void evaluate() {
+        boolean qualified = DataUsageUtils.isDataUsageQualified(mContext);
+        if (qualified == mQualified) {
+            if (mPending) {
+                // bounced back before the transition was applied
+                mHandler.removeCallbacks(mApply);
+                mPending = false;
+                mSuppressed++;
+                if (DEBUG) {
+                    Log.v(TAG, "evaluate: suppressed transition, qualified:" + qualified);
+                }
+            }
+            return;
+        }
+        if (mPending && mPendingTarget == qualified) {
+            // keep the original deadline, repeated callbacks must not postpone it
+            return;
+        }
+        mPending = true;
+        mPendingTarget = qualified;
+        mHandler.removeCallbacks(mApply);
+        mHandler.postDelayed(mApply, qualified ? QUALIFY_DELAY : UNQUALIFY_DELAY);
+        if (DEBUG) {
+            Log.v(TAG, "evaluate: pending qualified:" + qualified);
+        }
+    }
+
+    private void apply() {
+        mPending = false;
+        boolean qualified = DataUsageUtils.isDataUsageQualified(mContext);
+        if (qualified != mPendingTarget || qualified == mQualified) {
+            mSuppressed++;
+            return;
+        }
+        mQualified = qualified;
+        mTransitions++;
+        mLastTransition = SystemClock.elapsedRealtime();
+        if (DEBUG) {
+            Log.v(TAG, "apply: qualified:" + qualified);
+        }
+        if (qualified) {
+            // resume, but only if the user enabled the service
+            DataUsageUtils.startDataUsageServiceIfEnabled(mContext);
+        } else {
+            // pause, the user's preference is left as is
+            DataUsageUtils.startDataUsageService(mContext, false);
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Network tracker:");
+        writer.println("  qualified: " + mQualified + " for " +
+                (SystemClock.elapsedRealtime() - mLastTransition) / 1000 + "s");
+        writer.println("  transitions: " + mTransitions + " suppressed: " + mSuppressed +
+                " ignored capability changes: " + mIgnoredChanges);
+    }
+}
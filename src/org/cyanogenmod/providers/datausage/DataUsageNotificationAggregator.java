@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.SystemClock;
+import android.service.notification.StatusBarNotification;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseLongArray;
+
+/**
+ * Collects the data usage warnings raised during a collection cycle and posts them as one
+ * notification group: a child notification per app, carrying that app's DISABLE/HIDE
+ * actions, and an InboxStyle summary listing all of them.
+ *
+ * Nothing is posted unless the set of warned apps differs from the previous cycle, and a
+ * repeat warning of an app is only posted once its cooldown has expired, so an app that
+ * stays above its baseline does not rebuild and re-post its notification every minute. A new
+ * warning episode, after the previous one cleared, is posted right away.
+ *
+ * The summary lists the warnings still shown. A click opens the data usage settings right
+ * from the notification's content intent; one the user swipes away is taken out of the
+ * summary through its delete intent, and as a click sends none, clicked ones are taken out
+ * the next time the summary is posted. The notifications themselves come from a
+ * DataUsageNotificationFactory.
+ */
+public class DataUsageNotificationAggregator {
+    private static final String TAG = DataUsageNotificationAggregator.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final String QUOTA_TAG_PREFIX = "quota:";
+    // minimum time between two alerts for the same app within a warning episode
+    private static final long COOLDOWN = DateUtils.HOUR_IN_MILLIS;
+
+    private static DataUsageNotificationAggregator sInstance;
+
+    private final Context mContext;
+    private final NotificationManager mNotificationManager;
+    private final DataUsageNotificationFactory mFactory;
+
+    // warnings of the cycle in progress, uid -> first time
+    private final SparseBooleanArray mPending = new SparseBooleanArray();
+    private final SparseArray<String> mPendingLabels = new SparseArray<String>();
+    // warned apps of the last cycle that raised warnings
+    private final SparseBooleanArray mLastCycle = new SparseBooleanArray();
+    // apps listed in the summary, uid -> label
+    private final SparseArray<String> mShown = new SparseArray<String>();
+    private final SparseLongArray mLastPosted = new SparseLongArray();
+
+    public static synchronized DataUsageNotificationAggregator getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DataUsageNotificationAggregator(context);
+        }
+        return sInstance;
+    }
+
+    private DataUsageNotificationAggregator(Context context) {
+        mContext = context.getApplicationContext();
+        mNotificationManager = (NotificationManager) mContext.getSystemService(
+                Context.NOTIFICATION_SERVICE);
+        mFactory = new DataUsageNotificationFactory(mContext);
+    }
+
+    public synchronized void beginCycle() {
+        mPending.clear();
+        mPendingLabels.clear();
+    }
+
+    /**
+     * Record that an app exceeded its baseline during this cycle
+     */
+    public synchronized void addWarning(int uid, String label, boolean firstTime) {
+        mPending.put(uid, firstTime);
+        mPendingLabels.put(uid, label);
+    }
+
+    /**
+     * Post the warnings of this cycle, if the set of apps changed
+     */
+    public synchronized void endCycle() {
+        if (!setChanged()) {
+            return;
+        }
+        mLastCycle.clear();
+        for (int i = 0; i < mPending.size(); i++) {
+            mLastCycle.put(mPending.keyAt(i), true);
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        boolean changed = pruneRemoved();
+        for (int i = 0; i < mPending.size(); i++) {
+            int uid = mPending.keyAt(i);
+            boolean firstTime = mPending.valueAt(i);
+            long lastPosted = mLastPosted.get(uid, -1);
+            if (!firstTime && lastPosted >= 0 && now - lastPosted < COOLDOWN) {
+                continue;
+            }
+            String label = mPendingLabels.get(uid);
+            mNotificationManager.notify(String.valueOf(uid),
+                    DataUsageService.DATA_USAGE_SERVICE_NOTIFICATION_ID,
+                    mFactory.getAppNotification(uid, label, firstTime));
+            mLastPosted.put(uid, now);
+            mShown.put(uid, label);
+            changed = true;
+        }
+
+        if (DEBUG) {
+            Log.v(TAG, "endCycle: warned:" + mPending.size() + " changed:" + changed);
+        }
+
+        if (changed) {
+            postSummary();
+        }
+    }
+
+    /**
+     * Remove the notification of an app, after the user acted on it
+     */
+    public synchronized void dismiss(int uid) {
+        mNotificationManager.cancel(String.valueOf(uid),
+                DataUsageService.DATA_USAGE_SERVICE_NOTIFICATION_ID);
+        mLastCycle.delete(uid);
+        onWarningRemoved(uid);
+    }
+
+    /**
+     * Take an app out of the summary, after the user swiped away its warning
+     */
+    public synchronized void onWarningRemoved(int uid) {
+        if (mShown.indexOfKey(uid) < 0) {
+            return;
+        }
+        mShown.remove(uid);
+        mFactory.remove(uid);
+        if (mShown.size() == 0) {
+            mNotificationManager.cancel(DataUsageService.DATA_USAGE_SERVICE_NOTIFICATION_ID);
+        } else {
+            postSummary();
+        }
+    }
+
+    /**
+     * Forget the warnings shown, after the user swiped away the summary, which takes the
+     * whole group with it
+     */
+    public synchronized void onSummaryRemoved() {
+        for (int i = 0; i < mShown.size(); i++) {
+            mFactory.remove(mShown.keyAt(i));
+        }
+        mShown.clear();
+    }
+
+    /**
+     * Post the one notification of an app whose cellular data was turned off for exceeding
+     * its byte budget, outside of the warning group
+     */
+    public synchronized void postQuotaReached(int uid, String label, boolean monthly) {
+        mNotificationManager.notify(QUOTA_TAG_PREFIX + uid,
+                DataUsageService.DATA_USAGE_SERVICE_NOTIFICATION_ID,
+                mFactory.getQuotaNotification(label, monthly));
+    }
+
+    /**
+     * Remove the budget notification of an app, once its cellular data is back on
+     */
+    public synchronized void cancelQuotaReached(int uid) {
+        mNotificationManager.cancel(QUOTA_TAG_PREFIX + uid,
+                DataUsageService.DATA_USAGE_SERVICE_NOTIFICATION_ID);
+    }
+
+    private boolean setChanged() {
+        if (mPending.size() != mLastCycle.size()) {
+            return true;
+        }
+        for (int i = 0; i < mPending.size(); i++) {
+            if (!mLastCycle.get(mPending.keyAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take the warnings no longer posted out of the summary, those the user clicked, and
+     * returns whether there were any. Posts still being enqueued are not seen yet, so this
+     * runs before a cycle posts its warnings
+     */
+    private boolean pruneRemoved() {
+        SparseBooleanArray active = new SparseBooleanArray();
+        for (StatusBarNotification notification :
+                mNotificationManager.getActiveNotifications()) {
+            if (notification.getId() != DataUsageService.DATA_USAGE_SERVICE_NOTIFICATION_ID
+                    || notification.getTag() == null) {
+                continue;
+            }
+            try {
+                active.put(Integer.parseInt(notification.getTag()), true);
+            } catch (NumberFormatException e) {
+                // a budget notification
+            }
+        }
+        boolean pruned = false;
+        for (int i = mShown.size() - 1; i >= 0; i--) {
+            int uid = mShown.keyAt(i);
+            if (!active.get(uid)) {
+                mShown.removeAt(i);
+                mFactory.remove(uid);
+                pruned = true;
+            }
+        }
+        return pruned;
+    }
+
+    private void postSummary() {
+        Resources res = mContext.getResources();
+        int count = mShown.size();
+        if (count == 0) {
+            mNotificationManager.cancel(DataUsageService.DATA_USAGE_SERVICE_NOTIFICATION_ID);
+            return;
+        }
+        String title = res.getQuantityString(R.plurals.data_usage_notify_summary_title,
+                count, count);
+
+        Notification.InboxStyle style = new Notification.InboxStyle()
+                .setBigContentTitle(title);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            style.addLine(mShown.valueAt(i));
+            if (i > 0) {
+                text.append(", ");
+            }
+            text.append(mShown.valueAt(i));
+        }
+
+        Notification.Builder builder = mFactory.newSummaryBuilder()
+                .setContentText(text)
+                .setStyle(style)
+                .setNumber(count);
+
+        if (count == 1) {
+            // devices that only show the summary still get the actions of a single app
+            mFactory.addActions(builder, mShown.keyAt(0), mShown.valueAt(0), false);
+        }
+
+        mNotificationManager.notify(DataUsageService.DATA_USAGE_SERVICE_NOTIFICATION_ID,
+                builder.build());
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.providers.datausage;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Resources;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Builds the data usage notifications, caching what does not change from one warning to the
+ * next: the localized strings, the PendingIntents of every app, and the built notification
+ * of an app, which is reposted as is while its label stays the same.
+ *
+ * The PendingIntents of an app use its uid as request code, so the actions of two apps never
+ * share a PendingIntent and never carry each other's extras. Clicking or swiping away a
+ * warning goes through DataUsageNotificationReceiver, which keeps the summary in sync. The
+ * caches are dropped on ACTION_LOCALE_CHANGED.
+ */
+public class DataUsageNotificationFactory {
+    private static final String TAG = DataUsageNotificationFactory.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final String GROUP_KEY = "data_usage_warnings";
+
+    private final Context mContext;
+
+    // localized, null until first used after a locale change
+    private String mNotifyTitle;
+    private String mDisableLong;
+    private String mDisableShort;
+    private String mHide;
+    private int mColor;
+    private PendingIntent mContentIntent;
+    private PendingIntent mSummaryDismissIntent;
+    private final SparseArray<AppEntry> mApps = new SparseArray<AppEntry>();
+
+    private static class AppEntry {
+        String label;
+        PendingIntent disableIntent;
+        PendingIntent hideIntent;
+        PendingIntent openIntent;
+        PendingIntent dismissIntent;
+        // indexed by firstTime
+        final Notification[] notifications = new Notification[2];
+    }
+
+    private final BroadcastReceiver mLocaleReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    public DataUsageNotificationFactory(Context context) {
+        mContext = context.getApplicationContext();
+        mContext.registerReceiver(mLocaleReceiver,
+                new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+    }
+
+    /**
+     * Drop the cached strings and notifications, their locale is no longer current
+     */
+    public synchronized void invalidate() {
+        if (DEBUG) {
+            Log.v(TAG, "invalidate: apps:" + mApps.size());
+        }
+        mNotifyTitle = null;
+        mApps.clear();
+    }
+
+    /**
+     * Forget an app, once its notification is gone
+     */
+    public synchronized void remove(int uid) {
+        mApps.remove(uid);
+    }
+
+    /**
+     * Returns the warning of an app, with the DISABLE action only the first time and the
+     * DISABLE and HIDE actions afterwards
+     */
+    public synchronized Notification getAppNotification(int uid, String label,
+            boolean firstTime) {
+        AppEntry entry = getAppEntry(uid, label);
+        int slot = firstTime ? 1 : 0;
+        Notification notification = entry.notifications[slot];
+        if (notification != null) {
+            notification.when = System.currentTimeMillis();
+            return notification;
+        }
+
+        Resources res = mContext.getResources();
+        Notification.Builder builder = new Notification.Builder(mContext)
+                .setSmallIcon(R.drawable.data_usage_48dp)
+                .setContentTitle(mNotifyTitle)
+                .setAutoCancel(true)        // remove notification when clicked on
+                .setContentText(label)      // non-expanded view message
+                .setColor(mColor)
+                .setStyle(new Notification.BigTextStyle()
+                        .bigText(res.getString(R.string.data_usage_notify_big_text, label)))
+                .setGroup(GROUP_KEY)
+                .setContentIntent(entry.openIntent)
+                .setDeleteIntent(entry.dismissIntent);
+        addActions(builder, uid, label, firstTime);
+        notification = builder.build();
+        entry.notifications[slot] = notification;
+        if (DEBUG) {
+            Log.v(TAG, "getAppNotification: built uid:" + uid + " firstTime:" + firstTime);
+        }
+        return notification;
+    }
+
+    /**
+     * Returns a builder of the group summary, its style and text left to the caller
+     */
+    public synchronized Notification.Builder newSummaryBuilder() {
+        ensureStrings();
+        return new Notification.Builder(mContext)
+                .setSmallIcon(R.drawable.data_usage_48dp)
+                .setContentTitle(mNotifyTitle)
+                .setColor(mColor)
+                .setGroup(GROUP_KEY)
+                .setGroupSummary(true)
+                .setAutoCancel(true)
+                .setContentIntent(mContentIntent)
+                .setDeleteIntent(mSummaryDismissIntent);
+    }
+
+    /**
+     * Returns the notification of an app whose cellular data was turned off for exceeding
+     * its daily or monthly budget
+     */
+    public synchronized Notification getQuotaNotification(String label, boolean monthly) {
+        ensureStrings();
+        Resources res = mContext.getResources();
+        String text = res.getString(monthly ? R.string.data_usage_quota_monthly_text :
+                R.string.data_usage_quota_daily_text, label);
+        return new Notification.Builder(mContext)
+                .setSmallIcon(R.drawable.data_usage_48dp)
+                .setContentTitle(res.getString(R.string.data_usage_quota_title))
+                .setContentText(text)
+                .setColor(mColor)
+                .setStyle(new Notification.BigTextStyle().bigText(text))
+                .setAutoCancel(true)
+                .setContentIntent(mContentIntent)
+                .build();
+    }
+
+    /**
+     * Add the actions of an app to a notification
+     */
+    public synchronized void addActions(Notification.Builder builder, int uid, String label,
+            boolean firstTime) {
+        AppEntry entry = getAppEntry(uid, label);
+        if (firstTime) {
+            builder.addAction(R.drawable.data_usage_disable_24dp, mDisableLong,
+                    entry.disableIntent);
+        } else {
+            builder.addAction(R.drawable.data_usage_disable_24dp, mDisableShort,
+                    entry.disableIntent);
+            builder.addAction(R.drawable.data_usage_hide_24dp, mHide, entry.hideIntent);
+        }
+    }
+
+    private AppEntry getAppEntry(int uid, String label) {
+        ensureStrings();
+        AppEntry entry = mApps.get(uid);
+        if (entry != null && TextUtils.equals(entry.label, label)) {
+            return entry;
+        }
+        // new app or new label, which the action intents carry
+        entry = new AppEntry();
+        entry.label = label;
+        entry.disableIntent = buildActionPendingIntent(DataUsageService.DISABLE_ACTION, uid,
+                label);
+        entry.hideIntent = buildActionPendingIntent(DataUsageService.HIDE_ACTION, uid, label);
+        // its own request code, so that each warning keeps its own content intent
+        entry.openIntent = PendingIntent.getActivity(mContext, uid, buildDataUsageIntent(), 0);
+        entry.dismissIntent = buildActionPendingIntent(DataUsageService.DISMISS_ACTION, uid,
+                label);
+        mApps.put(uid, entry);
+        return entry;
+    }
+
+    private void ensureStrings() {
+        if (mNotifyTitle != null) {
+            return;
+        }
+        Resources res = mContext.getResources();
+        mNotifyTitle = res.getString(R.string.data_usage_notify_title);
+        mDisableLong = res.getString(R.string.data_usage_disable_long);
+        mDisableShort = res.getString(R.string.data_usage_disable_short);
+        mHide = res.getString(R.string.data_usage_hide);
+        mColor = mContext.getColor(R.color.data_usage_notification_icon_color);
+        if (mContentIntent == null) {
+            mContentIntent = PendingIntent.getActivity(mContext, 0, buildDataUsageIntent(), 0);
+            mSummaryDismissIntent = buildSummaryPendingIntent(DataUsageService.DISMISS_ACTION);
+        }
+    }
+
+    private PendingIntent buildActionPendingIntent(String action, int uid, String label) {
+        Intent intent = new Intent();
+        intent.setAction(action);
+        intent.putExtra(DataUsageService.DATA_USAGE_NOTIFICATION_UID, (long) uid);
+        intent.putExtra(DataUsageService.DATA_USAGE_NOTIFICATION_TITLE, label);
+        return PendingIntent.getBroadcast(mContext, uid, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private PendingIntent buildSummaryPendingIntent(String action) {
+        Intent intent = new Intent();
+        intent.setAction(action);
+        return PendingIntent.getBroadcast(mContext, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Returns the intent of the data usage settings
+     */
+    public static Intent buildDataUsageIntent() {
+        Intent dataUsageIntent = new Intent();
+        dataUsageIntent.setAction(cyanogenmod.providers.CMSettings.ACTION_DATA_USAGE);
+        dataUsageIntent.addCategory(Intent.CATEGORY_DEFAULT);
+        dataUsageIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        dataUsageIntent.addFlags(Intent.FLAG_ACTIVITY_NO_HISTORY);
+        dataUsageIntent.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
+        return dataUsageIntent;
+    }
+}
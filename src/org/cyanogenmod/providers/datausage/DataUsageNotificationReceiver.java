@@ -16,9 +16,7 @@
 
 package org.cyanogenmod.providers.datausage;
 
-import android.app.NotificationManager;
 import android.content.BroadcastReceiver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
@@ -27,8 +25,6 @@ import android.widget.Toast;
 import android.net.NetworkPolicyManager;
 import static android.net.NetworkPolicyManager.POLICY_REJECT_ON_DATA;
 
-import cyanogenmod.providers.DataUsageContract;
-
 
 /**
  * This class implements the receiver that will handle clicks on the buttons
@@ -42,8 +38,13 @@ public class DataUsageNotificationReceiver extends BroadcastReceiver {
     private static final boolean DEBUG = true;
 
     @Override
-    public void onReceive(Context context, Intent intent) {
-        String action = intent.getAction();
+    public void onReceive(final Context context, Intent intent) {
+        final String action = intent.getAction();
+        if (DataUsageService.DISMISS_ACTION.equals(action)) {
+            onWarningRemoved(context, intent);
+            return;
+        }
+
         int uid = 0;
         String title;
         if (intent.hasExtra(DataUsageService.DATA_USAGE_NOTIFICATION_UID)) {
@@ -63,27 +64,53 @@ public class DataUsageNotificationReceiver extends BroadcastReceiver {
             title = "";
         }
 
+        // give feedback right away, the provider and policy updates happen in the background
         if (DataUsageService.HIDE_ACTION.equals(action)) {
             Toast.makeText(context, context.getString(R.string.data_usage_hide_message, title),
                     Toast.LENGTH_LONG).show();
+        } else if (DataUsageService.DISABLE_ACTION.equals(action)) {
+            Toast.makeText(context, context.getString(R.string.data_usage_disable_message, title),
+                    Toast.LENGTH_LONG).show();
+        }
 
-            ContentValues values = new ContentValues();
-            values.put(DataUsageContract.ENABLE, 0);
-            values.put(DataUsageContract.ACTIVE, 0);
-            values.put(DataUsageContract.BYTES, 0);
+        final int appUid = uid;
+        DataUsageReceiverExecutor.dispatch(this, action, new Runnable() {
+            @Override
+            public void run() {
+                handleAction(context, action, appUid);
+            }
+        });
+    }
 
-            DataUsageUtils.enableApp(context, uid, false);
+    /**
+     * A warning, or the summary when there is no uid, was swiped away
+     */
+    private void onWarningRemoved(final Context context, Intent intent) {
+        final int uid = (int) intent.getLongExtra(
+                DataUsageService.DATA_USAGE_NOTIFICATION_UID, 0);
+        DataUsageReceiverExecutor.dispatch(this, intent.getAction(), new Runnable() {
+            @Override
+            public void run() {
+                DataUsageNotificationAggregator aggregator =
+                        DataUsageNotificationAggregator.getInstance(context);
+                if (uid == 0) {
+                    aggregator.onSummaryRemoved();
+                } else {
+                    aggregator.onWarningRemoved(uid);
+                }
+            }
+        });
+    }
 
+    private static void handleAction(Context context, String action, int uid) {
+        if (DataUsageService.HIDE_ACTION.equals(action)) {
+            DataUsageUtils.enableApp(context, uid, false);
         } else if (DataUsageService.DISABLE_ACTION.equals(action)) {
-            Toast.makeText(context, context.getString(R.string.data_usage_disable_message, title),
-                    Toast.LENGTH_LONG).show();
             NetworkPolicyManager policyManager = NetworkPolicyManager.from(context);
             policyManager.addUidPolicy(uid, POLICY_REJECT_ON_DATA);
         }
 
-        // cancel the notification
-        NotificationManager notificationManager = (NotificationManager)context.getSystemService
-                (Context.NOTIFICATION_SERVICE);
-        notificationManager.cancel(DataUsageService.DATA_USAGE_SERVICE_NOTIFICATION_ID);
+        // cancel the notification of this app
+        DataUsageNotificationAggregator.getInstance(context).dismiss(uid);
     }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.providers.datausage;
+
+import java.util.Arrays;
+
+/**
+ * Monitoring policies of the apps that tune their detectors, kept sorted by uid in parallel
+ * primitive arrays. A 0 setting stands for the DataUsageEvaluator default, apps without any
+ * setting have no entry.
+ */
+public class DataUsagePolicyTable {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private int mSize;
+    private int[] mUids;
+    private int[] mSensitivity;
+    private long[] mIdleBytes;
+    private int[] mMinSamples;
+    private int[] mQuietHours;
+
+    public DataUsagePolicyTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Set the policy of the uid, dropping its entry if all settings are defaults
+     */
+    public void put(int uid, int sensitivity, long idleBytes, int minSamples, int quietHours) {
+        int index = indexOfUid(uid);
+        if (sensitivity <= 0 && idleBytes <= 0 && minSamples <= 0 && quietHours == 0) {
+            remove(uid);
+            return;
+        }
+        if (index < 0) {
+            index = ~index;
+            if (mSize == mUids.length) {
+                grow(mSize * 2);
+            }
+            int count = mSize - index;
+            System.arraycopy(mUids, index, mUids, index + 1, count);
+            System.arraycopy(mSensitivity, index, mSensitivity, index + 1, count);
+            System.arraycopy(mIdleBytes, index, mIdleBytes, index + 1, count);
+            System.arraycopy(mMinSamples, index, mMinSamples, index + 1, count);
+            System.arraycopy(mQuietHours, index, mQuietHours, index + 1, count);
+            mUids[index] = uid;
+            mSize++;
+        }
+        mSensitivity[index] = Math.max(0, sensitivity);
+        mIdleBytes[index] = Math.max(0, idleBytes);
+        mMinSamples[index] = Math.max(0, minSamples);
+        mQuietHours[index] = quietHours;
+    }
+
+    public void remove(int uid) {
+        int index = indexOfUid(uid);
+        if (index < 0) {
+            return;
+        }
+        int count = mSize - index - 1;
+        System.arraycopy(mUids, index + 1, mUids, index, count);
+        System.arraycopy(mSensitivity, index + 1, mSensitivity, index, count);
+        System.arraycopy(mIdleBytes, index + 1, mIdleBytes, index, count);
+        System.arraycopy(mMinSamples, index + 1, mMinSamples, index, count);
+        System.arraycopy(mQuietHours, index + 1, mQuietHours, index, count);
+        mSize--;
+    }
+
+    private void allocate(int capacity) {
+        mUids = new int[capacity];
+        mSensitivity = new int[capacity];
+        mIdleBytes = new long[capacity];
+        mMinSamples = new int[capacity];
+        mQuietHours = new int[capacity];
+    }
+
+    private void grow(int capacity) {
+        mUids = Arrays.copyOf(mUids, capacity);
+        mSensitivity = Arrays.copyOf(mSensitivity, capacity);
+        mIdleBytes = Arrays.copyOf(mIdleBytes, capacity);
+        mMinSamples = Arrays.copyOf(mMinSamples, capacity);
+        mQuietHours = Arrays.copyOf(mQuietHours, capacity);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int indexOfUid(int uid) {
+        return Arrays.binarySearch(mUids, 0, mSize, uid);
+    }
+
+    public int uidAt(int index) {
+        return mUids[index];
+    }
+
+    public int getSensitivity(int index) {
+        return mSensitivity[index];
+    }
+
+    public long getIdleBytes(int index) {
+        return mIdleBytes[index];
+    }
+
+    public int getMinSamples(int index) {
+        return mMinSamples[index];
+    }
+
+    public int getQuietHours(int index) {
+        return mQuietHours[index];
+    }
+}
@@ -17,18 +17,35 @@
 package org.cyanogenmod.providers.datausage;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.CursorWrapper;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemProperties;
+import android.os.UserHandle;
 import android.provider.ContactsContract;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Calendar;
+
 import cyanogenmod.providers.DataUsageContract;
 
 /**
@@ -41,14 +58,122 @@ public class DataUsageProvider extends ContentProvider {
     private static final boolean DEBUG = false;
     private static final String TAG = DataUsageProvider.class.getSimpleName();
     private static final String DATABASE_NAME = "datausage.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 6;
+
+    // minimum time between two rounds of change notifications, can be tuned at runtime
+    private static final String NOTIFY_INTERVAL_PROPERTY = "persist.sys.datausage.notify_ms";
+    private static final long DEFAULT_NOTIFY_INTERVAL = 2000;
+
+    // query parameter identifying the writer, used to tag the resulting change notifications
+    public static final String PARAM_SOURCE = "source";
+    public static final String SOURCE_COLLECTOR = "collector";
+
+    // aggregate URIs: datausage/top/<count>[?order=bytes|fast_avg] and datausage/users
+    public static final String TOP_PATH = "top";
+    public static final String USERS_PATH = "users";
+    public static final String PARAM_ORDER = "order";
+    public static final String ORDER_BYTES = DataUsageContract.BYTES;
+    public static final String ORDER_FAST_AVG = DataUsageContract.FAST_AVG;
+    // upper bound of the number of rows returned by the aggregate URIs
+    public static final int MAX_AGGREGATE_ROWS = 50;
+
+    // keyset pagination of datausage: ?limit=<n>[&sort=uid|bytes|fast_avg][&after=<token>]
+    // the token of the next page is returned in the cursor extras, and is absent on the last page
+    public static final String PARAM_LIMIT = "limit";
+    public static final String PARAM_SORT = "sort";
+    public static final String PARAM_AFTER = "after";
+    public static final String SORT_UID = DataUsageContract.UID;
+    public static final String SORT_BYTES = DataUsageContract.BYTES;
+    public static final String SORT_FAST_AVG = DataUsageContract.FAST_AVG;
+    public static final String EXTRA_NEXT_PAGE_TOKEN = "next_page_token";
+    public static final int MAX_PAGE_SIZE = 500;
+
+    // columns of the per user totals, BYTES and FAST_AVG hold the sums over the user's apps
+    public static final String USER_KEY = "user_key";
+    public static final String USER_ID = "user_id";
+    public static final String APP_COUNT = "app_count";
+
+    // per (uid, detector) state of the detectors other than the mobile home network total,
+    // rows are replaced as a whole by inserting into datausage/detector
+    public static final String DETECTOR_TABLE = "datausage_detector";
+    public static final String DETECTOR_PATH = "detector";
+    public static final String DETECTOR = "detector";
+
+    // per app byte budgets of the datausage table, 0 meaning no budget. The monthly budget
+    // runs from CYCLE_DAY of a month (clamped to the month's length) to the day before it
+    // in the next month. Only apps with warnings enabled are enforced
+    public static final String DAILY_QUOTA = "daily_quota";
+    public static final String MONTHLY_QUOTA = "monthly_quota";
+    public static final String CYCLE_DAY = "cycle_day";
+    // running counters of the current periods, maintained by the collector
+    public static final String DAILY_BYTES = "daily_bytes";
+    public static final String MONTHLY_BYTES = "monthly_bytes";
+    public static final String DAILY_PERIOD = "daily_period";
+    public static final String MONTHLY_PERIOD = "monthly_period";
+    // mask of the QUOTA_* budgets exceeded in their current period, with QUOTA_REJECTED set
+    // when the collector turned the app's cellular data off for them, as opposed to the
+    // user having done so already, so that it only ever turns back on what it turned off
+    public static final String QUOTA_STATE = "quota_state";
+    public static final int QUOTA_DAILY = 1;
+    public static final int QUOTA_MONTHLY = 2;
+    public static final int QUOTA_EXCEEDED = QUOTA_DAILY | QUOTA_MONTHLY;
+    public static final int QUOTA_REJECTED = 4;
+    // usage forecast of the apps with a budget: level in bytes per day, trend in bytes per
+    // day per day, and the time of its last sample, see DataUsageForecast
+    public static final String FORECAST_LEVEL = "forecast_level";
+    public static final String FORECAST_TREND = "forecast_trend";
+    public static final String FORECAST_TIME = "forecast_time";
+
+    // per app monitoring policy of the datausage table, 0 standing for the defaults of
+    // DataUsageEvaluator: SENSITIVITY is the percentage by which the fast average must
+    // exceed the slow one to warn, IDLE_BYTES the largest sample still considered idle,
+    // MIN_SAMPLES the samples the slow average needs before warnings, and QUIET_HOURS a
+    // mask of the local hours (bit 0 for midnight to 1am) in which no warning is raised
+    public static final String SENSITIVITY = "sensitivity";
+    public static final String IDLE_BYTES = "idle_bytes";
+    public static final String MIN_SAMPLES = "min_samples";
+    public static final String QUIET_HOURS = "quiet_hours";
+
+    // end of billing cycle forecasts: datausage/forecast, a row for the device's mobile plan
+    // (uid FORECAST_DEVICE_UID) followed by a row per app with a budget. OVERRUN_TIME is the
+    // expected time LIMIT_BYTES is reached, null if not within the cycle or without a limit
+    public static final String FORECAST_PATH = "forecast";
+    public static final int FORECAST_DEVICE_UID = -1;
+    public static final String CYCLE_BYTES = "cycle_bytes";
+    public static final String PROJECTED_BYTES = "projected_bytes";
+    public static final String LIMIT_BYTES = "limit_bytes";
+    public static final String CYCLE_END = "cycle_end";
+    public static final String OVERRUN_TIME = "overrun_time";
+
+    // CSV export streamed through a pipe: datausage/export, see DataUsageExporter
+    public static final String EXPORT_PATH = "export";
+    public static final String EXPORT_MIME_TYPE = "text/csv";
+    public static final String PARAM_TABLE = "table";
+    public static final String TABLE_STATE = "state";
+    public static final String TABLE_SAMPLES = "samples";
+    public static final String PARAM_MIN_UID = "min_uid";
+    public static final String PARAM_MAX_UID = "max_uid";
+
+    // provider call() reclaiming the pages freed by deletes, returns EXTRA_FREED_PAGES
+    public static final String METHOD_VACUUM = "vacuum";
+    public static final String EXTRA_FREED_PAGES = "freed_pages";
+    private static final String WRITE_PERMISSION = "cyanogenmod.permission.WRITE_DATAUSAGE";
 
     private DatabaseHelper mOpenHelper;
+    private DataUsageChangeNotifier mChangeNotifier;
+    private DataUsageWriteQueue mWriteQueue;
+    private DataUsageQueryCache mQueryCache;
+    private DataUsageExporter mExporter;
 
     // define database matching constants
     private static final int DATAUSAGE_ALL      = 0;
     private static final int DATAUSAGE_ID       = 1;
     private static final int DATAUSAGE_UID      = 2;
+    private static final int DATAUSAGE_TOP      = 3;
+    private static final int DATAUSAGE_USERS    = 4;
+    private static final int DATAUSAGE_DETECTOR = 5;
+    private static final int DATAUSAGE_FORECAST = 6;
+    private static final int DATAUSAGE_EXPORT   = 7;
 
     // build a URI matcher - add routes to it (if any)
     private static final UriMatcher sURIMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -59,6 +184,16 @@ public class DataUsageProvider extends ContentProvider {
                 DataUsageContract.DATAUSAGE_TABLE + "/#",     DATAUSAGE_ID);
         sURIMatcher.addURI(DataUsageContract.DATAUSAGE_AUTHORITY,
                 DataUsageContract.DATAUSAGE_TABLE + "/uid/*", DATAUSAGE_UID);
+        sURIMatcher.addURI(DataUsageContract.DATAUSAGE_AUTHORITY,
+                DataUsageContract.DATAUSAGE_TABLE + "/" + TOP_PATH + "/#", DATAUSAGE_TOP);
+        sURIMatcher.addURI(DataUsageContract.DATAUSAGE_AUTHORITY,
+                DataUsageContract.DATAUSAGE_TABLE + "/" + USERS_PATH, DATAUSAGE_USERS);
+        sURIMatcher.addURI(DataUsageContract.DATAUSAGE_AUTHORITY,
+                DataUsageContract.DATAUSAGE_TABLE + "/" + DETECTOR_PATH, DATAUSAGE_DETECTOR);
+        sURIMatcher.addURI(DataUsageContract.DATAUSAGE_AUTHORITY,
+                DataUsageContract.DATAUSAGE_TABLE + "/" + FORECAST_PATH, DATAUSAGE_FORECAST);
+        sURIMatcher.addURI(DataUsageContract.DATAUSAGE_AUTHORITY,
+                DataUsageContract.DATAUSAGE_TABLE + "/" + EXPORT_PATH, DATAUSAGE_EXPORT);
     }
 
     // Database Helper Class
@@ -87,25 +222,275 @@ public class DataUsageProvider extends ContentProvider {
                             DataUsageContract.FAST_SAMPLES + " INTEGER DEFAULT 0, " +
                             DataUsageContract.EXTRA + " STRING );"
             );
+            createIndexes(db);
+            createDetectorTable(db);
+            addQuotaColumns(db);
+            addForecastColumns(db);
+            addPolicyColumns(db);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            return;
+            if (oldVersion < 2) {
+                createIndexes(db);
+            }
+            if (oldVersion < 3) {
+                createDetectorTable(db);
+            }
+            if (oldVersion < 4) {
+                addQuotaColumns(db);
+            }
+            if (oldVersion < 5) {
+                addForecastColumns(db);
+            }
+            if (oldVersion < 6) {
+                addPolicyColumns(db);
+            }
+        }
+
+        private void addQuotaColumns(SQLiteDatabase db) {
+            String[] columns = {
+                    DAILY_QUOTA, MONTHLY_QUOTA, DAILY_BYTES, MONTHLY_BYTES,
+                    DAILY_PERIOD, MONTHLY_PERIOD, QUOTA_STATE
+            };
+            for (String column : columns) {
+                db.execSQL("ALTER TABLE " + DataUsageContract.DATAUSAGE_TABLE +
+                        " ADD COLUMN " + column + " INTEGER DEFAULT 0;");
+            }
+            db.execSQL("ALTER TABLE " + DataUsageContract.DATAUSAGE_TABLE +
+                    " ADD COLUMN " + CYCLE_DAY + " INTEGER DEFAULT 1;");
         }
+
+        private void createDetectorTable(SQLiteDatabase db) {
+            db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS " + DETECTOR_TABLE +
+                            "(" + DataUsageContract.UID + " INTEGER, " +
+                            DETECTOR + " INTEGER, " +
+                            DataUsageContract.ACTIVE + " INTEGER DEFAULT 0, " +
+                            DataUsageContract.BYTES + " INTEGER DEFAULT 0, " +
+                            DataUsageContract.SLOW_AVG + " INTEGER DEFAULT 0, " +
+                            DataUsageContract.SLOW_SAMPLES + " INTEGER DEFAULT 0, " +
+                            DataUsageContract.FAST_AVG + " INTEGER DEFAULT 0, " +
+                            DataUsageContract.FAST_SAMPLES + " INTEGER DEFAULT 0, " +
+                            "PRIMARY KEY (" + DataUsageContract.UID + ", " + DETECTOR + "));"
+            );
+        }
+
+        private void addForecastColumns(SQLiteDatabase db) {
+            String[] columns = { FORECAST_LEVEL, FORECAST_TREND, FORECAST_TIME };
+            for (String column : columns) {
+                db.execSQL("ALTER TABLE " + DataUsageContract.DATAUSAGE_TABLE +
+                        " ADD COLUMN " + column + " INTEGER DEFAULT 0;");
+            }
+        }
+
+        private void addPolicyColumns(SQLiteDatabase db) {
+            String[] columns = { SENSITIVITY, IDLE_BYTES, MIN_SAMPLES, QUIET_HOURS };
+            for (String column : columns) {
+                db.execSQL("ALTER TABLE " + DataUsageContract.DATAUSAGE_TABLE +
+                        " ADD COLUMN " + column + " INTEGER DEFAULT 0;");
+            }
+        }
+
+        // indexes backing the uid lookups and the aggregate queries
+        private void createIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS datausage_uid_idx ON " +
+                    DataUsageContract.DATAUSAGE_TABLE + "(" + DataUsageContract.UID + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS datausage_bytes_idx ON " +
+                    DataUsageContract.DATAUSAGE_TABLE + "(" + DataUsageContract.BYTES + ", " +
+                    DataUsageContract.UID + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS datausage_fast_avg_idx ON " +
+                    DataUsageContract.DATAUSAGE_TABLE + "(" + DataUsageContract.FAST_AVG + ", " +
+                    DataUsageContract.UID + ");");
+        }
+    }
+
+
+    /**
+     * Returns the URI the collector writes through, so that its own updates can be told apart
+     */
+    public static Uri buildCollectorUri() {
+        return DataUsageContract.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PARAM_SOURCE, SOURCE_COLLECTOR)
+                .build();
+    }
+
+    /**
+     * Returns the URI listing the count apps that consumed the most, ordered by order,
+     * which is either {@link #ORDER_BYTES} or {@link #ORDER_FAST_AVG}
+     */
+    public static Uri buildTopUri(int count, String order) {
+        return DataUsageContract.CONTENT_URI.buildUpon()
+                .appendPath(TOP_PATH)
+                .appendPath(String.valueOf(count))
+                .appendQueryParameter(PARAM_ORDER, order)
+                .build();
+    }
+
+    /**
+     * Returns the URI listing the totals per user, keyed as
+     * {@link UidDetailProvider#buildKeyForUser(int)}
+     */
+    public static Uri buildUsersUri() {
+        return DataUsageContract.CONTENT_URI.buildUpon()
+                .appendPath(USERS_PATH)
+                .build();
+    }
+
+    /**
+     * Returns the URI of a page of at most limit rows sorted by sort, which is one of
+     * {@link #SORT_UID} (ascending), {@link #SORT_BYTES} or {@link #SORT_FAST_AVG} (descending).
+     * Pass the {@link #EXTRA_NEXT_PAGE_TOKEN} of the previous page as token, or null for
+     * the first page.
+     */
+    public static Uri buildPageUri(String sort, int limit, String token) {
+        Uri.Builder builder = DataUsageContract.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PARAM_SORT, sort)
+                .appendQueryParameter(PARAM_LIMIT, String.valueOf(limit));
+        if (token != null) {
+            builder.appendQueryParameter(PARAM_AFTER, token);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the URI of the end of billing cycle forecasts
+     */
+    public static Uri buildForecastUri() {
+        return DataUsageContract.CONTENT_URI.buildUpon()
+                .appendPath(FORECAST_PATH)
+                .build();
     }
 
+    /**
+     * Returns the URI of the per (uid, detector) state table
+     */
+    public static Uri buildDetectorUri() {
+        return DataUsageContract.CONTENT_URI.buildUpon()
+                .appendPath(DETECTOR_PATH)
+                .build();
+    }
+
+    /**
+     * Returns the URI the collector writes detector state through
+     */
+    public static Uri buildCollectorDetectorUri() {
+        return buildDetectorUri().buildUpon()
+                .appendQueryParameter(PARAM_SOURCE, SOURCE_COLLECTOR)
+                .build();
+    }
+
+    /**
+     * Returns the URI on which changes to the row of the specified uid are notified
+     */
+    public static Uri buildUidUri(int uid) {
+        return DataUsageContract.CONTENT_URI.buildUpon()
+                .appendPath("uid")
+                .appendPath(String.valueOf(uid))
+                .build();
+    }
 
     @Override
     public boolean onCreate() {
         mOpenHelper = new DatabaseHelper(getContext());
+        mQueryCache = new DataUsageQueryCache();
+        mChangeNotifier = new DataUsageChangeNotifier(getContext().getContentResolver(),
+                SystemProperties.getLong(NOTIFY_INTERVAL_PROPERTY, DEFAULT_NOTIFY_INTERVAL));
+        mWriteQueue = new DataUsageWriteQueue(mOpenHelper,
+                new DataUsageWriteQueue.WriteListener() {
+            @Override
+            public void onWriteStarted() {
+                mQueryCache.onWriteStarted();
+                mChangeNotifier.onWriteStarted();
+            }
+
+            @Override
+            public void onWriteFinished() {
+                // the cache first, observers re-query as soon as they are notified
+                mQueryCache.onWriteFinished();
+                mChangeNotifier.onWriteFinished();
+            }
+        });
+        mExporter = new DataUsageExporter(mOpenHelper);
+        onProcessStarted();
         return true;
     }
 
+    /**
+     * The provider is created whenever our process starts, track the network from then on.
+     * Tests, whose isolated context has no system services, skip it
+     */
+    void onProcessStarted() {
+        DataUsageNetworkTracker.getInstance(getContext()).start();
+        DataUsageReconcileService.schedule(getContext());
+    }
+
+    /**
+     * Returns the uid targeted by a "uid = ?" selection, or -1 if the selection may
+     * touch an arbitrary set of rows
+     */
+    private static int getSelectionUid(String selection, String[] selectionArgs) {
+        if (selection == null || selectionArgs == null || selectionArgs.length != 1) {
+            return -1;
+        }
+        if (!selection.replace(" ", "").equals(DataUsageContract.UID + "=?")) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(selectionArgs[0]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void markDirty(Uri uri, int uid) {
+        mQueryCache.invalidate(uid);
+
+        boolean fromCollector = SOURCE_COLLECTOR.equals(uri.getQueryParameter(PARAM_SOURCE));
+        if (uid < 0) {
+            mChangeNotifier.markAllDirty(fromCollector);
+        } else {
+            mChangeNotifier.markDirty(uid, fromCollector);
+        }
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder
     ) {
+        if (sURIMatcher.match(uri) == DATAUSAGE_FORECAST) {
+            // projections move with the clock, never cache them
+            Cursor cursor = queryForecast(selection, selectionArgs);
+            cursor.setNotificationUri(getContext().getContentResolver(),
+                    DataUsageContract.CONTENT_URI);
+            return cursor;
+        }
+        if (uri.getQueryParameter(PARAM_LIMIT) != null) {
+            // pages are large and rarely repeated
+            return queryDatabase(uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        String key = DataUsageQueryCache.buildKey(uri, projection, selection, selectionArgs,
+                sortOrder);
+        Cursor cursor = mQueryCache.get(key);
+        if (cursor == null) {
+            long generation = mQueryCache.getGeneration();
+            cursor = mQueryCache.put(key, generation, getSelectionUid(selection, selectionArgs),
+                    queryDatabase(uri, projection, selection, selectionArgs, sortOrder));
+        }
+        if (cursor != null) {
+            // aggregates depend on every row, the other queries are notified on their own URI
+            int match = sURIMatcher.match(uri);
+            cursor.setNotificationUri(getContext().getContentResolver(),
+                    match == DATAUSAGE_TOP || match == DATAUSAGE_USERS ||
+                            match == DATAUSAGE_DETECTOR ?
+                            DataUsageContract.CONTENT_URI : uri);
+        }
+        return cursor;
+    }
+
+    private Cursor queryDatabase(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         qb.setTables(DataUsageContract.DATAUSAGE_TABLE);
 
@@ -117,6 +502,9 @@ public class DataUsageProvider extends ContentProvider {
 
         switch (match) {
             case DATAUSAGE_ALL:
+                if (uri.getQueryParameter(PARAM_LIMIT) != null) {
+                    return queryPage(uri, projection, selection, selectionArgs);
+                }
                 break;
 
             case DATAUSAGE_ID:
@@ -125,6 +513,16 @@ public class DataUsageProvider extends ContentProvider {
             case DATAUSAGE_UID:
                 break;
 
+            case DATAUSAGE_TOP:
+                return queryTop(uri, projection, selection, selectionArgs);
+
+            case DATAUSAGE_USERS:
+                return queryUsers(uri, selection, selectionArgs);
+
+            case DATAUSAGE_DETECTOR:
+                qb.setTables(DETECTOR_TABLE);
+                break;
+
             default:
                 Log.e(TAG, "query: invalid request: " + uri);
                 return null;
@@ -133,17 +531,268 @@ public class DataUsageProvider extends ContentProvider {
         Cursor cursor;
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         cursor = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+        if (cursor != null) {
+            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        }
+
+        return cursor;
+    }
+
+    /**
+     * One page of the table. Pages are delimited by the (sort key, uid, _id) of their last
+     * row rather than by an offset, so every page is a range scan of the matching index and
+     * costs the same no matter how deep into the table it is. The uid is not unique, _id
+     * tells apart the rows of a uid that straddle two pages.
+     */
+    private Cursor queryPage(Uri uri, String[] projection, String selection,
+            String[] selectionArgs) {
+        int limit;
+        try {
+            limit = Integer.parseInt(uri.getQueryParameter(PARAM_LIMIT));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit in URI: " + uri);
+        }
+        limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+        String sort = uri.getQueryParameter(PARAM_SORT);
+        if (sort == null) {
+            sort = SORT_UID;
+        } else if (!SORT_UID.equals(sort) && !SORT_BYTES.equals(sort) &&
+                !SORT_FAST_AVG.equals(sort)) {
+            throw new IllegalArgumentException("Invalid sort in URI: " + uri);
+        }
+        boolean byUid = SORT_UID.equals(sort);
+
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(DataUsageContract.DATAUSAGE_TABLE);
+
+        String token = uri.getQueryParameter(PARAM_AFTER);
+        if (token != null) {
+            long afterKey;
+            long afterUid;
+            long afterId;
+            try {
+                String[] keys = token.split(",");
+                if (keys.length != 3) {
+                    throw new IllegalArgumentException();
+                }
+                afterKey = Long.parseLong(keys[0]);
+                afterUid = Long.parseLong(keys[1]);
+                afterId = Long.parseLong(keys[2]);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid page token in URI: " + uri);
+            }
+            String uid = DataUsageContract.UID;
+            String id = DataUsageContract._ID;
+            if (byUid) {
+                qb.appendWhere("(" + uid + " > " + afterUid + " OR (" + uid + " = " +
+                        afterUid + " AND " + id + " > " + afterId + "))");
+            } else {
+                qb.appendWhere(sort + " <= " + afterKey + " AND (" + sort + " < " + afterKey +
+                        " OR " + uid + " < " + afterUid + " OR (" + uid + " = " + afterUid +
+                        " AND " + id + " < " + afterId + "))");
+            }
+        }
+
+        // the keyset of the last row is needed to build the next token
+        projection = addColumns(projection, sort, DataUsageContract.UID, DataUsageContract._ID);
+        String order = byUid ? DataUsageContract.UID + ", " + DataUsageContract._ID :
+                sort + " DESC, " + DataUsageContract.UID + " DESC, " +
+                DataUsageContract._ID + " DESC";
+
+        Cursor cursor = qb.query(mOpenHelper.getReadableDatabase(), projection, selection,
+                selectionArgs, null, null, order, String.valueOf(limit));
+        if (cursor == null) {
+            return null;
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                DataUsageContract.CONTENT_URI);
+
+        Bundle extras = new Bundle();
+        int count = cursor.getCount();
+        if (count == limit && cursor.moveToPosition(count - 1)) {
+            long lastKey = cursor.getLong(cursor.getColumnIndexOrThrow(sort));
+            long lastUid = cursor.getLong(cursor.getColumnIndexOrThrow(DataUsageContract.UID));
+            long lastId = cursor.getLong(cursor.getColumnIndexOrThrow(DataUsageContract._ID));
+            extras.putString(EXTRA_NEXT_PAGE_TOKEN, lastKey + "," + lastUid + "," + lastId);
+        }
+        cursor.moveToPosition(-1);
+        return new PageCursor(cursor, extras);
+    }
+
+    private static String[] addColumns(String[] projection, String... columns) {
+        if (projection == null) {
+            return null;
+        }
+        ArrayList<String> result = new ArrayList<String>(projection.length + columns.length);
+        for (String column : projection) {
+            result.add(column);
+        }
+        for (String column : columns) {
+            if (!result.contains(column)) {
+                result.add(column);
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Carries the continuation token of a page across the binder
+     */
+    private static class PageCursor extends CursorWrapper {
+        private final Bundle mExtras;
+
+        public PageCursor(Cursor cursor, Bundle extras) {
+            super(cursor);
+            mExtras = extras;
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+    }
 
+    /**
+     * Top consumers, served by the (bytes, uid) or (fast_avg, uid) index
+     */
+    private Cursor queryTop(Uri uri, String[] projection, String selection,
+            String[] selectionArgs) {
+        int count;
+        try {
+            count = Integer.parseInt(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            count = MAX_AGGREGATE_ROWS;
+        }
+        count = Math.max(1, Math.min(count, MAX_AGGREGATE_ROWS));
+
+        String order = ORDER_FAST_AVG.equals(uri.getQueryParameter(PARAM_ORDER)) ?
+                DataUsageContract.FAST_AVG : DataUsageContract.BYTES;
+
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(DataUsageContract.DATAUSAGE_TABLE);
+        Cursor cursor = qb.query(mOpenHelper.getReadableDatabase(), projection, selection,
+                selectionArgs, null, null,
+                order + " DESC, " + DataUsageContract.UID + " DESC", String.valueOf(count));
+        if (cursor != null) {
+            cursor.setNotificationUri(getContext().getContentResolver(),
+                    DataUsageContract.CONTENT_URI);
+        }
+        return cursor;
+    }
+
+    /**
+     * Totals per user, grouped the same way the Settings app collapses other users' apps
+     * into a single {@link AppItem#CATEGORY_USER} item
+     */
+    private Cursor queryUsers(Uri uri, String selection, String[] selectionArgs) {
+        String userId = "(" + DataUsageContract.UID + " / " + UserHandle.PER_USER_RANGE + ")";
+        String[] projection = new String[] {
+                (UidDetailProvider.OTHER_USER_RANGE_START + " - " + userId) + " AS " + USER_KEY,
+                userId + " AS " + USER_ID,
+                "COUNT(*) AS " + APP_COUNT,
+                "SUM(" + DataUsageContract.BYTES + ") AS " + DataUsageContract.BYTES,
+                "SUM(" + DataUsageContract.FAST_AVG + ") AS " + DataUsageContract.FAST_AVG,
+        };
+
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(DataUsageContract.DATAUSAGE_TABLE);
+        qb.appendWhere(DataUsageContract.UID + " >= 0");
+        Cursor cursor = qb.query(mOpenHelper.getReadableDatabase(), projection, selection,
+                selectionArgs, USER_ID, null, DataUsageContract.BYTES + " DESC",
+                String.valueOf(MAX_AGGREGATE_ROWS));
+        if (cursor != null) {
+            cursor.setNotificationUri(getContext().getContentResolver(),
+                    DataUsageContract.CONTENT_URI);
+        }
         return cursor;
     }
 
+    /**
+     * End of billing cycle forecasts, projected from the few values the collector keeps per
+     * app and for the device, so the cost does not depend on the usage history
+     */
+    private Cursor queryForecast(String selection, String[] selectionArgs) {
+        MatrixCursor result = new MatrixCursor(new String[] {
+                DataUsageContract.UID, CYCLE_BYTES, PROJECTED_BYTES, LIMIT_BYTES, CYCLE_END,
+                OVERRUN_TIME
+        });
+        Calendar now = Calendar.getInstance();
+
+        SharedPreferences prefs = getContext().getSharedPreferences(DataUsageUtils.PREF_FILE,
+                Context.MODE_PRIVATE);
+        long deviceTime = prefs.getLong(DataUsageUtils.PREF_DEVICE_FORECAST_TIME, 0);
+        if (deviceTime > 0) {
+            addForecastRow(result, now, FORECAST_DEVICE_UID,
+                    prefs.getInt(DataUsageUtils.PREF_DEVICE_CYCLE_DAY, 1),
+                    prefs.getInt(DataUsageUtils.PREF_DEVICE_CYCLE_PERIOD, 0),
+                    prefs.getLong(DataUsageUtils.PREF_DEVICE_CYCLE_BYTES, 0),
+                    prefs.getLong(DataUsageUtils.PREF_DEVICE_LIMIT, 0),
+                    prefs.getLong(DataUsageUtils.PREF_DEVICE_FORECAST_LEVEL, 0),
+                    prefs.getLong(DataUsageUtils.PREF_DEVICE_FORECAST_TREND, 0),
+                    deviceTime);
+        }
+
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(DataUsageContract.DATAUSAGE_TABLE);
+        qb.appendWhere(FORECAST_TIME + " > 0");
+        Cursor cursor = qb.query(mOpenHelper.getReadableDatabase(), new String[] {
+                DataUsageContract.UID, CYCLE_DAY, MONTHLY_PERIOD, MONTHLY_BYTES, MONTHLY_QUOTA,
+                FORECAST_LEVEL, FORECAST_TREND, FORECAST_TIME
+        }, selection, selectionArgs, null, null, DataUsageContract.UID);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                addForecastRow(result, now, cursor.getInt(0), cursor.getInt(1),
+                        cursor.getInt(2), cursor.getLong(3), cursor.getLong(4),
+                        cursor.getLong(5), cursor.getLong(6), cursor.getLong(7));
+            }
+            cursor.close();
+        }
+        return result;
+    }
+
+    private static void addForecastRow(MatrixCursor result, Calendar now, int uid,
+            int cycleDay, int period, long cycleBytes, long limit, long level, long trend,
+            long time) {
+        // a counter of a past cycle has not been reset yet
+        if (period != DataUsageQuotaTable.getMonthlyPeriod(now, cycleDay)) {
+            cycleBytes = 0;
+        }
+        long nowMillis = now.getTimeInMillis();
+        long cycleEnd = DataUsageForecast.getCycleEnd(now, cycleDay);
+        long idle = nowMillis - time;
+        long remaining = cycleEnd - nowMillis;
+        Long overrun = null;
+        if (limit > 0) {
+            long offset = DataUsageForecast.getOverrun(cycleBytes, limit, level, trend, idle,
+                    remaining);
+            if (offset != DataUsageForecast.NO_OVERRUN) {
+                overrun = nowMillis + offset;
+            }
+        }
+        result.addRow(new Object[] {
+                uid, cycleBytes,
+                DataUsageForecast.project(cycleBytes, level, trend, idle, remaining),
+                limit > 0 ? limit : null, cycleEnd, overrun
+        });
+    }
+
     @Override
     public String getType(Uri uri) {
         int match = sURIMatcher.match(uri);
 
         switch(match) {
             case DATAUSAGE_ALL:
+            case DATAUSAGE_TOP:
                 return "vnd.android.cursor.dir/datausage_entry";
+            case DATAUSAGE_USERS:
+                return "vnd.android.cursor.dir/datausage_user";
+            case DATAUSAGE_DETECTOR:
+                return "vnd.android.cursor.dir/datausage_detector";
+            case DATAUSAGE_FORECAST:
+                return "vnd.android.cursor.dir/datausage_forecast";
+            case DATAUSAGE_EXPORT:
+                return EXPORT_MIME_TYPE;
             case DATAUSAGE_ID:
             case DATAUSAGE_UID:
                 return "vnd.android.cursor.item/datausage_entry";
@@ -153,14 +802,58 @@ public class DataUsageProvider extends ContentProvider {
     }
 
     @Override
-    public Uri insert(Uri uri, ContentValues values) {
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sURIMatcher.match(uri) != DATAUSAGE_EXPORT) {
+            throw new FileNotFoundException("No files supported by provider at " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Exports are read only: " + uri);
+        }
+        return mExporter.export(uri);
+    }
+
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        if (sURIMatcher.match(uri) == DATAUSAGE_EXPORT &&
+                compareMimeTypes(EXPORT_MIME_TYPE, mimeTypeFilter)) {
+            return new AssetFileDescriptor(openFile(uri, "r"), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+        return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+    }
+
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        if (sURIMatcher.match(uri) == DATAUSAGE_EXPORT &&
+                compareMimeTypes(EXPORT_MIME_TYPE, mimeTypeFilter)) {
+            return new String[] { EXPORT_MIME_TYPE };
+        }
+        return null;
+    }
+
+    @Override
+    public Uri insert(final Uri uri, final ContentValues values) {
         int match = sURIMatcher.match(uri);
         if (DEBUG) {
             Log.v(TAG, "Insert uri=" + uri + ", match=" + match);
         }
 
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        long rowID = db.insert(DataUsageContract.DATAUSAGE_TABLE, null, values);
+        final boolean detector = match == DATAUSAGE_DETECTOR;
+        long rowID = submit(new DataUsageWriteQueue.Mutation<Long>(false) {
+            @Override
+            protected Long apply(SQLiteDatabase db) {
+                long rowID = detector ?
+                        db.insertWithOnConflict(DETECTOR_TABLE, null, values,
+                                SQLiteDatabase.CONFLICT_REPLACE) :
+                        db.insert(DataUsageContract.DATAUSAGE_TABLE, null, values);
+                if (rowID >= 0) {
+                    Integer uid = values.getAsInteger(DataUsageContract.UID);
+                    markDirty(uri, uid != null ? uid : -1);
+                }
+                return rowID;
+            }
+        });
 
         if (DEBUG) {
             Log.v(TAG, "inserted " + values + " rowID=" + rowID);
@@ -170,9 +863,8 @@ public class DataUsageProvider extends ContentProvider {
     }
 
     @Override
-    public int delete(Uri uri, String selection, String[] selectionArgs) {
+    public int delete(final Uri uri, String selection, String[] selectionArgs) {
         int match = sURIMatcher.match(uri);
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
         if (DEBUG) {
             Log.v(TAG, "Delete uri=" + uri + ", match=" + match);
@@ -191,22 +883,42 @@ public class DataUsageProvider extends ContentProvider {
                 selection = DataUsageContract.UID + " = ? ";
                 selectionArgs = new String [] {uidNumber};
                 break;
+            case DATAUSAGE_DETECTOR:
+                break;
             default:
                 throw new UnsupportedOperationException(
                         "Cannot delete URI:" + uri
                 );
         }
-        int count = db.delete(DataUsageContract.DATAUSAGE_TABLE, selection, selectionArgs);
-        return count;
+
+        final boolean detector = match == DATAUSAGE_DETECTOR;
+        final String where = selection;
+        final String[] whereArgs = selectionArgs;
+        return submit(new DataUsageWriteQueue.Mutation<Integer>(false) {
+            @Override
+            protected Integer apply(SQLiteDatabase db) {
+                int count = db.delete(detector ? DETECTOR_TABLE :
+                        DataUsageContract.DATAUSAGE_TABLE, where, whereArgs);
+                if (count > 0 && !detector) {
+                    // the detector state of removed apps goes with them
+                    db.delete(DETECTOR_TABLE, DataUsageContract.UID + " NOT IN (SELECT " +
+                            DataUsageContract.UID + " FROM " +
+                            DataUsageContract.DATAUSAGE_TABLE + ")", null);
+                }
+                if (count > 0) {
+                    markDirty(uri, getSelectionUid(where, whereArgs));
+                }
+                return count;
+            }
+        });
     }
 
     // update is always done by UID
     @Override
-    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        long count = 0;
+    public int update(final Uri uri, final ContentValues values, String selection,
+            String[] selectionArgs) {
         int match = sURIMatcher.match(uri);
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        String uid;
+        final String uid;
 
         if (DEBUG) {
             Log.v(TAG, "Update uri=" + uri + ", match=" + match);
@@ -231,36 +943,148 @@ public class DataUsageProvider extends ContentProvider {
 
         }
 
-        // if no record is found, then perform an insert, so make the db transaction atomic
+        // if no record is found, then perform an insert, the write queue runs both
+        // in the same transaction, so the update is atomic
         if (DEBUG) {
             Log.v(TAG, "Update: Values:" + values.toString() + " selection:" + selection + " " +
                     " selectionArgs:" + selectionArgs[0]);
         }
 
-        db.beginTransaction();
-        try {
-            count = db.update(DataUsageContract.DATAUSAGE_TABLE, values, selection, selectionArgs);
+        final String where = selection;
+        final String[] whereArgs = selectionArgs;
+        long count = submit(new DataUsageWriteQueue.Mutation<Long>(false) {
+            @Override
+            protected Long apply(SQLiteDatabase db) {
+                long count = db.update(DataUsageContract.DATAUSAGE_TABLE, values, where,
+                        whereArgs);
 
-            if (DEBUG) {
-                Log.v(TAG, "Update count:" + count);
-            }
-            if (count == 0) {
                 if (DEBUG) {
-                    Log.v(TAG, "Count==0, Performing Insert");
+                    Log.v(TAG, "Update count:" + count);
                 }
-                values.put(DataUsageContract.UID, uid);
-                count = db.insert(DataUsageContract.DATAUSAGE_TABLE, null, values);
-            }
-            db.setTransactionSuccessful();
-        } finally {
-            if (DEBUG) {
-                Log.v(TAG, "dbEndTransaction");
+                if (count == 0) {
+                    if (DEBUG) {
+                        Log.v(TAG, "Count==0, Performing Insert");
+                    }
+                    values.put(DataUsageContract.UID, uid);
+                    count = db.insert(DataUsageContract.DATAUSAGE_TABLE, null, values);
+                }
+                if (count > 0) {
+                    markDirty(uri, getSelectionUid(where, whereArgs));
+                }
+                return count;
             }
-            db.endTransaction();
-        }
+        });
+
         if (DEBUG) {
             Log.v(TAG, "Update result for uri=" + uri + " count=" + count);
         }
         return (int)count;
     }
+
+    /**
+     * Apply all operations in a single transaction, observers are notified once at the end
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(
+            final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        mChangeNotifier.beginBatch();
+        try {
+            return mWriteQueue.submit(
+                    new DataUsageWriteQueue.Mutation<ContentProviderResult[]>(true) {
+                @Override
+                protected ContentProviderResult[] apply(SQLiteDatabase db)
+                        throws OperationApplicationException {
+                    return DataUsageProvider.super.applyBatch(operations);
+                }
+            });
+        } finally {
+            mChangeNotifier.endBatch();
+        }
+    }
+
+    @Override
+    public int bulkInsert(final Uri uri, final ContentValues[] values) {
+        mChangeNotifier.beginBatch();
+        try {
+            return submit(new DataUsageWriteQueue.Mutation<Integer>(true) {
+                @Override
+                protected Integer apply(SQLiteDatabase db) {
+                    return DataUsageProvider.super.bulkInsert(uri, values);
+                }
+            });
+        } finally {
+            mChangeNotifier.endBatch();
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!METHOD_VACUUM.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        getContext().enforceCallingOrSelfPermission(WRITE_PERMISSION, null);
+        Bundle result = new Bundle();
+        result.putLong(EXTRA_FREED_PAGES, vacuum());
+        return result;
+    }
+
+    /**
+     * Return the free pages of the database to the file system, returns their number. The
+     * first call on a database created without incremental auto vacuum converts it with a
+     * full VACUUM, later calls are incremental. Neither can run inside a transaction, so
+     * this does not go through the write queue.
+     */
+    private long vacuum() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long freePages = queryPragma(db, "freelist_count");
+        if (queryPragma(db, "auto_vacuum") != 2) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+            db.execSQL("VACUUM;");
+        } else {
+            // incremental_vacuum frees a page per row stepped over
+            Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum;", null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                }
+                cursor.close();
+            }
+        }
+        return freePages - queryPragma(db, "freelist_count");
+    }
+
+    private static long queryPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma + ";", null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Submit a single row write, which cannot fail with an OperationApplicationException
+     */
+    private <T> T submit(DataUsageWriteQueue.Mutation<T> mutation) {
+        try {
+            return mWriteQueue.submit(mutation);
+        } catch (OperationApplicationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mWriteQueue.dump(writer);
+        mQueryCache.dump(writer);
+        DataUsageReceiverExecutor.dump(writer);
+        DataUsageNetworkTracker.getInstance(getContext()).dump(writer);
+        DataUsageCycleTrigger.getInstance().dump(writer);
+        DataUsageBurstMonitor.getInstance(getContext()).dump(writer);
+        DataUsageReconcileService.dump(writer);
+        DataUsageUserTable.getInstance(getContext()).dump(writer);
+    }
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Bounded cache of recent DataUsageProvider result sets, keyed by the normalized shape of
+ * the query, so that hot lookups such as the enable state of one uid are served as a copy
+ * of a few values instead of a SQLite query.
+ *
+ * A result set is tagged with the uid it was selected by ("uid = ?"), or as table wide.
+ * A write to a uid drops the entries of that uid and the table wide ones; entries of other
+ * uids survive. Result sets read while a write transaction is in progress are never stored,
+ * so the cache cannot resurrect rows that a concurrent write is replacing.
+ */
+public class DataUsageQueryCache implements DataUsageWriteQueue.WriteListener {
+    private static final int MAX_ENTRIES = 64;
+    // larger result sets are returned uncached
+    private static final int MAX_ROWS = 32;
+    private static final int WIDE = -1;
+
+    private static class Entry {
+        final int uid;
+        final String[] columns;
+        final Object[][] rows;
+
+        Entry(int uid, String[] columns, Object[][] rows) {
+            this.uid = uid;
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+
+    private final LruCache<String, Entry> mEntries = new LruCache<String, Entry>(MAX_ENTRIES);
+
+    // guarded by this
+    private long mGeneration;
+    private int mWritesInFlight;
+    private long mInvalidations;
+
+    /**
+     * Returns the key identifying the result set of this query
+     */
+    public static String buildKey(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        StringBuilder key = new StringBuilder(uri.toString());
+        key.append('|');
+        if (projection != null) {
+            for (String column : projection) {
+                key.append(column).append(',');
+            }
+        }
+        key.append('|');
+        if (selection != null) {
+            key.append(selection.replaceAll("\\s+", ""));
+        }
+        key.append('|');
+        if (selectionArgs != null) {
+            for (String arg : selectionArgs) {
+                key.append(arg).append(',');
+            }
+        }
+        key.append('|').append(sortOrder);
+        return key.toString();
+    }
+
+    /**
+     * Returns a copy of the cached result set, or null
+     */
+    public Cursor get(String key) {
+        Entry entry = mEntries.get(key);
+        return entry != null ? get(entry) : null;
+    }
+
+    /**
+     * Returns the token to pass to {@link #put}, taken before running the query
+     */
+    public synchronized long getGeneration() {
+        // nothing read while a write is in progress may be stored
+        return mWritesInFlight > 0 ? -1 : mGeneration;
+    }
+
+    /**
+     * Store the result set of a query selected by uid (or -1 if table wide), returns the
+     * cursor to hand out in place of the consumed one
+     */
+    public Cursor put(String key, long generation, int uid, Cursor cursor) {
+        if (cursor == null || generation < 0 || cursor.getCount() > MAX_ROWS) {
+            return cursor;
+        }
+
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        cursor.moveToPosition(-1);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            Object[] row = new Object[columns.length];
+            for (int column = 0; column < columns.length; column++) {
+                switch (cursor.getType(column)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[column] = cursor.getLong(column);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[column] = cursor.getDouble(column);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[column] = cursor.getString(column);
+                        break;
+                    default:
+                        row[column] = null;
+                        break;
+                }
+            }
+            rows[i] = row;
+        }
+        cursor.close();
+
+        Entry entry = new Entry(uid < 0 ? WIDE : uid, columns, rows);
+        synchronized (this) {
+            if (generation == mGeneration && mWritesInFlight == 0) {
+                mEntries.put(key, entry);
+            }
+        }
+        return get(entry);
+    }
+
+    private Cursor get(Entry entry) {
+        MatrixCursor cursor = new MatrixCursor(entry.columns, entry.rows.length);
+        for (Object[] row : entry.rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Drop the result sets that may contain the row of the specified uid, or all of them if
+     * the uid is -1
+     */
+    public synchronized void invalidate(int uid) {
+        mGeneration++;
+        mInvalidations++;
+        if (uid < 0) {
+            mEntries.evictAll();
+            return;
+        }
+        for (Map.Entry<String, Entry> cached : mEntries.snapshot().entrySet()) {
+            int cachedUid = cached.getValue().uid;
+            if (cachedUid == uid || cachedUid == WIDE) {
+                mEntries.remove(cached.getKey());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onWriteStarted() {
+        mWritesInFlight++;
+        mGeneration++;
+    }
+
+    @Override
+    public synchronized void onWriteFinished() {
+        mWritesInFlight--;
+        mGeneration++;
+    }
+
+    public void dump(PrintWriter writer) {
+        int hits = mEntries.hitCount();
+        int misses = mEntries.missCount();
+        writer.println("Query cache:");
+        writer.println("  entries: " + mEntries.size() + "/" + MAX_ENTRIES);
+        writer.println("  hits: " + hits + " misses: " + misses + " hit rate: " +
+                (hits + misses == 0 ? 0 : 100 * hits / (hits + misses)) + "%");
+        writer.println("  evictions: " + mEntries.evictionCount());
+        synchronized (this) {
+            writer.println("  invalidations: " + mInvalidations);
+        }
+    }
+}
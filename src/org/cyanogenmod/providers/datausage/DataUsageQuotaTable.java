@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.providers.datausage;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * Byte budgets of the apps that have one, with the running counters of their current daily
+ * and monthly periods, kept sorted by uid in parallel primitive arrays.
+ *
+ * Periods are identified by an int key: the day of the year for the daily budget, and the
+ * month the billing cycle started in for the monthly one. A counter whose key differs from
+ * the current period's belongs to a past period and starts over, so enforcement never needs
+ * the usage history. The forecast of the monthly usage is kept alongside.
+ */
+public class DataUsageQuotaTable {
+    private static final int INITIAL_CAPACITY = 4;
+
+    // the counters are not comparable to the collected totals yet
+    public static final long NO_WATERMARK = -1;
+
+    private int mSize;
+    private int[] mUids;
+    private long[] mDailyQuota;
+    private long[] mMonthlyQuota;
+    private int[] mCycleDay;
+    private long[] mDailyBytes;
+    private long[] mMonthlyBytes;
+    private int[] mDailyPeriod;
+    private int[] mMonthlyPeriod;
+    private int[] mState;
+    // usage forecast, see DataUsageForecast
+    private long[] mLevel;
+    private long[] mTrend;
+    private long[] mForecastTime;
+    // collected total of the app when the counters were last advanced, in memory only
+    private long[] mWatermark;
+
+    public DataUsageQuotaTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Returns the key of the daily period containing now
+     */
+    public static int getDailyPeriod(Calendar now) {
+        return now.get(Calendar.YEAR) * 1000 + now.get(Calendar.DAY_OF_YEAR);
+    }
+
+    /**
+     * Returns the key of the billing cycle containing now, for cycles starting on cycleDay
+     */
+    public static int getMonthlyPeriod(Calendar now, int cycleDay) {
+        int month = now.get(Calendar.YEAR) * 12 + now.get(Calendar.MONTH);
+        int startDay = Math.max(1, Math.min(cycleDay,
+                now.getActualMaximum(Calendar.DAY_OF_MONTH)));
+        return now.get(Calendar.DAY_OF_MONTH) >= startDay ? month : month - 1;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Returns the index of the uid, adding an entry without budgets if needed
+     */
+    public int put(int uid) {
+        int index = indexOfUid(uid);
+        if (index >= 0) {
+            return index;
+        }
+        index = ~index;
+        if (mSize == mUids.length) {
+            grow(mSize * 2);
+        }
+        int count = mSize - index;
+        System.arraycopy(mUids, index, mUids, index + 1, count);
+        System.arraycopy(mDailyQuota, index, mDailyQuota, index + 1, count);
+        System.arraycopy(mMonthlyQuota, index, mMonthlyQuota, index + 1, count);
+        System.arraycopy(mCycleDay, index, mCycleDay, index + 1, count);
+        System.arraycopy(mDailyBytes, index, mDailyBytes, index + 1, count);
+        System.arraycopy(mMonthlyBytes, index, mMonthlyBytes, index + 1, count);
+        System.arraycopy(mDailyPeriod, index, mDailyPeriod, index + 1, count);
+        System.arraycopy(mMonthlyPeriod, index, mMonthlyPeriod, index + 1, count);
+        System.arraycopy(mState, index, mState, index + 1, count);
+        System.arraycopy(mLevel, index, mLevel, index + 1, count);
+        System.arraycopy(mTrend, index, mTrend, index + 1, count);
+        System.arraycopy(mForecastTime, index, mForecastTime, index + 1, count);
+        System.arraycopy(mWatermark, index, mWatermark, index + 1, count);
+        mUids[index] = uid;
+        setQuota(index, 0, 0, 1);
+        setCounters(index, 0, 0, 0, 0, 0);
+        setForecast(index, 0, 0, 0);
+        mWatermark[index] = NO_WATERMARK;
+        mSize++;
+        return index;
+    }
+
+    public void remove(int uid) {
+        int index = indexOfUid(uid);
+        if (index < 0) {
+            return;
+        }
+        int count = mSize - index - 1;
+        System.arraycopy(mUids, index + 1, mUids, index, count);
+        System.arraycopy(mDailyQuota, index + 1, mDailyQuota, index, count);
+        System.arraycopy(mMonthlyQuota, index + 1, mMonthlyQuota, index, count);
+        System.arraycopy(mCycleDay, index + 1, mCycleDay, index, count);
+        System.arraycopy(mDailyBytes, index + 1, mDailyBytes, index, count);
+        System.arraycopy(mMonthlyBytes, index + 1, mMonthlyBytes, index, count);
+        System.arraycopy(mDailyPeriod, index + 1, mDailyPeriod, index, count);
+        System.arraycopy(mMonthlyPeriod, index + 1, mMonthlyPeriod, index, count);
+        System.arraycopy(mState, index + 1, mState, index, count);
+        System.arraycopy(mLevel, index + 1, mLevel, index, count);
+        System.arraycopy(mTrend, index + 1, mTrend, index, count);
+        System.arraycopy(mForecastTime, index + 1, mForecastTime, index, count);
+        System.arraycopy(mWatermark, index + 1, mWatermark, index, count);
+        mSize--;
+    }
+
+    private void allocate(int capacity) {
+        mUids = new int[capacity];
+        mDailyQuota = new long[capacity];
+        mMonthlyQuota = new long[capacity];
+        mCycleDay = new int[capacity];
+        mDailyBytes = new long[capacity];
+        mMonthlyBytes = new long[capacity];
+        mDailyPeriod = new int[capacity];
+        mMonthlyPeriod = new int[capacity];
+        mState = new int[capacity];
+        mLevel = new long[capacity];
+        mTrend = new long[capacity];
+        mForecastTime = new long[capacity];
+        mWatermark = new long[capacity];
+    }
+
+    private void grow(int capacity) {
+        mUids = Arrays.copyOf(mUids, capacity);
+        mDailyQuota = Arrays.copyOf(mDailyQuota, capacity);
+        mMonthlyQuota = Arrays.copyOf(mMonthlyQuota, capacity);
+        mCycleDay = Arrays.copyOf(mCycleDay, capacity);
+        mDailyBytes = Arrays.copyOf(mDailyBytes, capacity);
+        mMonthlyBytes = Arrays.copyOf(mMonthlyBytes, capacity);
+        mDailyPeriod = Arrays.copyOf(mDailyPeriod, capacity);
+        mMonthlyPeriod = Arrays.copyOf(mMonthlyPeriod, capacity);
+        mState = Arrays.copyOf(mState, capacity);
+        mLevel = Arrays.copyOf(mLevel, capacity);
+        mTrend = Arrays.copyOf(mTrend, capacity);
+        mForecastTime = Arrays.copyOf(mForecastTime, capacity);
+        mWatermark = Arrays.copyOf(mWatermark, capacity);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int indexOfUid(int uid) {
+        return Arrays.binarySearch(mUids, 0, mSize, uid);
+    }
+
+    public int uidAt(int index) {
+        return mUids[index];
+    }
+
+    public long getDailyQuota(int index) {
+        return mDailyQuota[index];
+    }
+
+    public long getMonthlyQuota(int index) {
+        return mMonthlyQuota[index];
+    }
+
+    public int getCycleDay(int index) {
+        return mCycleDay[index];
+    }
+
+    public long getDailyBytes(int index) {
+        return mDailyBytes[index];
+    }
+
+    public long getMonthlyBytes(int index) {
+        return mMonthlyBytes[index];
+    }
+
+    public int getDailyPeriod(int index) {
+        return mDailyPeriod[index];
+    }
+
+    public int getMonthlyPeriod(int index) {
+        return mMonthlyPeriod[index];
+    }
+
+    public int getState(int index) {
+        return mState[index];
+    }
+
+    public long getLevel(int index) {
+        return mLevel[index];
+    }
+
+    public long getTrend(int index) {
+        return mTrend[index];
+    }
+
+    public long getForecastTime(int index) {
+        return mForecastTime[index];
+    }
+
+    public long getWatermark(int index) {
+        return mWatermark[index];
+    }
+
+    public void setWatermark(int index, long watermark) {
+        mWatermark[index] = watermark;
+    }
+
+    public void setQuota(int index, long dailyQuota, long monthlyQuota, int cycleDay) {
+        mDailyQuota[index] = dailyQuota;
+        mMonthlyQuota[index] = monthlyQuota;
+        mCycleDay[index] = cycleDay;
+    }
+
+    public void setCounters(int index, long dailyBytes, long monthlyBytes, int dailyPeriod,
+            int monthlyPeriod, int state) {
+        mDailyBytes[index] = dailyBytes;
+        mMonthlyBytes[index] = monthlyBytes;
+        mDailyPeriod[index] = dailyPeriod;
+        mMonthlyPeriod[index] = monthlyPeriod;
+        mState[index] = state;
+    }
+
+    public void setForecast(int index, long level, long trend, long time) {
+        mLevel[index] = level;
+        mTrend[index] = trend;
+        mForecastTime[index] = time;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.content.BroadcastReceiver;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared background thread the broadcast receivers hand their work to, so that provider
+ * writes, binder calls, SharedPreferences and alarm programming never run on the main thread.
+ *
+ * Work is dispatched through {@link BroadcastReceiver#goAsync()}, which keeps the broadcast
+ * (and the process) alive until the work completes. A single worker runs the work in the
+ * order the broadcasts arrived. User actions and settings changes are never dropped; only
+ * triggers whose work is idempotent, such as boot, are coalesced through
+ * {@link #dispatchCoalesced}: while one is still queued, another with the same name has
+ * nothing left to do and completes right away, which keeps bursts of them from piling up.
+ */
+public final class DataUsageReceiverExecutor {
+    private static final String TAG = DataUsageReceiverExecutor.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    // work running longer than this risks the broadcast timeout
+    private static final long SLOW_WORK_MS = 2000;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG);
+                }
+            });
+
+    // names of the coalesced work queued and not started yet, guarded by the class
+    private static final HashSet<String> sPending = new HashSet<String>();
+
+    // metrics, guarded by the class
+    private static long sDispatched;
+    private static long sCoalesced;
+    private static long sSlow;
+    private static long sTotalWaitMs;
+    private static long sTotalRunMs;
+    private static long sMaxWaitMs;
+    private static long sMaxRunMs;
+
+    private DataUsageReceiverExecutor() {
+    }
+
+    /**
+     * Run the work of the receiver's current broadcast in the background, after the work
+     * of every broadcast dispatched before it
+     */
+    public static void dispatch(BroadcastReceiver receiver, String name, Runnable work) {
+        execute(receiver.goAsync(), name, work, false);
+    }
+
+    /**
+     * Like {@link #dispatch}, but for a trigger whose work only needs to run once for a burst
+     * of them: while work of the same name is still queued, this broadcast completes right
+     * away, as the queued work has not started and covers it
+     */
+    public static void dispatchCoalesced(BroadcastReceiver receiver, String name,
+            Runnable work) {
+        BroadcastReceiver.PendingResult result = receiver.goAsync();
+        synchronized (DataUsageReceiverExecutor.class) {
+            if (!sPending.add(name)) {
+                sCoalesced++;
+                if (DEBUG) {
+                    Log.v(TAG, "Coalescing " + name + " with the queued one");
+                }
+                result.finish();
+                return;
+            }
+        }
+        execute(result, name, work, true);
+    }
+
+    private static void execute(final BroadcastReceiver.PendingResult result,
+            final String name, final Runnable work, final boolean coalesced) {
+        final long queued = SystemClock.uptimeMillis();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (coalesced) {
+                    // a trigger arriving from now on needs another run
+                    synchronized (DataUsageReceiverExecutor.class) {
+                        sPending.remove(name);
+                    }
+                }
+                long started = SystemClock.uptimeMillis();
+                try {
+                    work.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, name + " failed", e);
+                } finally {
+                    result.finish();
+                    record(name, started - queued, SystemClock.uptimeMillis() - started);
+                }
+            }
+        });
+    }
+
+    private static synchronized void record(String name, long waitMs, long runMs) {
+        sDispatched++;
+        sTotalWaitMs += waitMs;
+        sTotalRunMs += runMs;
+        sMaxWaitMs = Math.max(sMaxWaitMs, waitMs);
+        sMaxRunMs = Math.max(sMaxRunMs, runMs);
+        if (waitMs + runMs > SLOW_WORK_MS) {
+            sSlow++;
+            Log.w(TAG, name + " took " + (waitMs + runMs) + "ms (waited " + waitMs + "ms)");
+        } else if (DEBUG) {
+            Log.v(TAG, name + " waited " + waitMs + "ms, ran " + runMs + "ms");
+        }
+    }
+
+    public static synchronized void dump(PrintWriter writer) {
+        writer.println("Receiver executor:");
+        writer.println("  dispatched: " + sDispatched + " coalesced: " + sCoalesced +
+                " slow: " + sSlow + " queued: " + sExecutor.getQueue().size());
+        if (sDispatched > 0) {
+            writer.println("  wait avg/max: " + sTotalWaitMs / sDispatched + "/" + sMaxWaitMs +
+                    "ms run avg/max: " + sTotalRunMs / sDispatched + "/" + sMaxRunMs + "ms");
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.providers.datausage;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.UserInfo;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cyanogenmod.providers.DataUsageContract;
+
+/**
+ * Periodic, low priority job bringing the datausage table back in line with the installed
+ * packages, for the package broadcasts that were missed (process killed, receiver disabled
+ * during an OTA, ...): rows of uids no longer installed are deleted, and installed apps
+ * without a row get one.
+ *
+ * The installed uids and the provider's uids are walked as two sorted streams, the latter
+ * along the uid index, so a run is O(n + m). All changes are applied as one batch, after
+ * which the freed pages are returned with an incremental vacuum.
+ */
+public class DataUsageReconcileService extends JobService {
+    private static final String TAG = DataUsageReconcileService.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final int JOB_ID = 0x102050;
+    private static final long PERIOD = DateUtils.DAY_IN_MILLIS;
+
+    // outcome of the last run, guarded by the class
+    private static long sLastRun;
+    private static int sLastRemoved;
+    private static int sLastAdded;
+    private static long sLastFreedPages;
+
+    private volatile boolean mStopped;
+
+    /**
+     * Schedule the job, unless already scheduled
+     */
+    public static void schedule(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(
+                Context.JOB_SCHEDULER_SERVICE);
+        List<JobInfo> pending = jobScheduler.getAllPendingJobs();
+        if (pending != null) {
+            for (JobInfo job : pending) {
+                if (job.getId() == JOB_ID) {
+                    return;
+                }
+            }
+        }
+        jobScheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, DataUsageReconcileService.class))
+                .setPeriodic(PERIOD)
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        mStopped = false;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                boolean done = false;
+                try {
+                    done = reconcile();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "reconcile failed", e);
+                } finally {
+                    jobFinished(params, !done && !mStopped);
+                }
+            }
+        }, TAG).start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // the device left idle, try again at the next window
+        mStopped = true;
+        return true;
+    }
+
+    /**
+     * Returns whether the run completed
+     */
+    private boolean reconcile() {
+        int[] installed = getInstalledUids();
+        if (installed == null) {
+            return false;
+        }
+
+        Cursor cursor = getContentResolver().query(
+                DataUsageContract.CONTENT_URI,
+                new String[] { DataUsageContract.UID },
+                DataUsageContract.UID + " >= ? ",
+                new String[] { "0" },
+                DataUsageContract.UID
+        );
+        if (cursor == null) {
+            return false;
+        }
+
+        // sorted merge: a row uid below the next installed uid is an orphan, an installed
+        // uid below the next row uid is missing
+        ArrayList<Integer> orphans = new ArrayList<Integer>();
+        ArrayList<Integer> missing = new ArrayList<Integer>();
+        int next = 0;
+        int lastRow = -1;
+        try {
+            while (cursor.moveToNext()) {
+                int uid = cursor.getInt(0);
+                if (uid == lastRow) {
+                    continue;
+                }
+                lastRow = uid;
+                while (next < installed.length && installed[next] < uid) {
+                    missing.add(installed[next++]);
+                }
+                if (next < installed.length && installed[next] == uid) {
+                    next++;
+                } else {
+                    orphans.add(uid);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        while (next < installed.length) {
+            missing.add(installed[next++]);
+        }
+        if (mStopped) {
+            return false;
+        }
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        PackageManager packageManager = getPackageManager();
+        int removed = 0;
+        for (int uid : orphans) {
+            if (packageManager.getPackagesForUid(uid) != null) {
+                // installed since the package list was read
+                continue;
+            }
+            operations.add(ContentProviderOperation.newDelete(DataUsageContract.CONTENT_URI)
+                    .withSelection(DataUsageContract.UID + " = ? ",
+                            new String[] { String.valueOf(uid) })
+                    .build());
+            removed++;
+        }
+        UidDetailProvider uidDetailProvider = new UidDetailProvider(this);
+        for (int uid : missing) {
+            UidDetail detail = uidDetailProvider.getUidDetail(uid, true);
+            ContentValues values = new ContentValues();
+            values.put(DataUsageContract.LABEL, detail != null ? detail.label.toString() : "");
+            // an update inserts the row if still missing, without duplicating one added
+            // by a package broadcast in the meantime
+            operations.add(ContentProviderOperation.newUpdate(DataUsageContract.CONTENT_URI)
+                    .withValues(values)
+                    .withSelection(DataUsageContract.UID + " = ? ",
+                            new String[] { String.valueOf(uid) })
+                    .build());
+        }
+
+        long freedPages = 0;
+        try {
+            if (!operations.isEmpty()) {
+                getContentResolver().applyBatch(DataUsageContract.DATAUSAGE_AUTHORITY,
+                        operations);
+            }
+            Bundle result = getContentResolver().call(DataUsageContract.CONTENT_URI,
+                    DataUsageProvider.METHOD_VACUUM, null, null);
+            if (result != null) {
+                freedPages = result.getLong(DataUsageProvider.EXTRA_FREED_PAGES);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException: " + e.getMessage());
+            return false;
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "OperationApplicationException: " + e.getMessage());
+            return false;
+        }
+
+        synchronized (DataUsageReconcileService.class) {
+            sLastRun = System.currentTimeMillis();
+            sLastRemoved = removed;
+            sLastAdded = missing.size();
+            sLastFreedPages = freedPages;
+        }
+        Log.i(TAG, "reconcile: installed:" + installed.length + " removed:" + removed +
+                " added:" + missing.size() + " freed pages:" + freedPages);
+        if (DEBUG) {
+            Log.v(TAG, "reconcile: removed:" + orphans + " added:" + missing);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the sorted, distinct uids of the apps installed for any user, or null
+     */
+    private int[] getInstalledUids() {
+        UserManager userManager = (UserManager) getSystemService(Context.USER_SERVICE);
+        List<UserInfo> users = userManager.getUsers();
+        if (users == null) {
+            return null;
+        }
+
+        PackageManager packageManager = getPackageManager();
+        int count = 0;
+        int[] uids = new int[256];
+        for (UserInfo user : users) {
+            List<ApplicationInfo> apps = packageManager.getInstalledApplicationsAsUser(0,
+                    user.id);
+            if (apps == null) {
+                return null;
+            }
+            for (ApplicationInfo app : apps) {
+                if (!UserHandle.isApp(app.uid)) {
+                    // other uids are not added, and only deleted once no package has them
+                    continue;
+                }
+                if (count == uids.length) {
+                    uids = Arrays.copyOf(uids, count * 2);
+                }
+                uids[count++] = app.uid;
+            }
+        }
+
+        Arrays.sort(uids, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || uids[distinct - 1] != uids[i]) {
+                uids[distinct++] = uids[i];
+            }
+        }
+        return Arrays.copyOf(uids, distinct);
+    }
+
+    public static synchronized void dump(PrintWriter writer) {
+        writer.println("Reconcile job:");
+        writer.println("  last run: " + sLastRun + " removed: " + sLastRemoved +
+                " added: " + sLastAdded + " freed pages: " + sLastFreedPages);
+    }
+}
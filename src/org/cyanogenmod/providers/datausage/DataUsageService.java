@@ -16,29 +16,24 @@
 
 package org.cyanogenmod.providers.datausage;
 
-import android.app.ActivityManager;
 import android.app.IntentService;
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
-import android.app.TaskStackBuilder;
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.ConnectivityManager;
-import android.net.Uri;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
-import android.os.UserManager;
-import android.provider.Settings;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -46,8 +41,12 @@ import java.util.Set;
 
 import android.net.NetworkTemplate;
 import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import android.net.INetworkStatsService;
 import android.net.INetworkStatsSession;
+import android.net.NetworkPolicy;
+import android.net.NetworkPolicyManager;
+import static android.net.NetworkPolicyManager.POLICY_REJECT_ON_DATA;
 import static android.net.TrafficStats.UID_REMOVED;
 
 import android.telephony.SubscriptionInfo;
@@ -55,13 +54,12 @@ import android.telephony.SubscriptionManager;
 import android.net.NetworkStats;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
-import android.content.pm.UserInfo;
 
 import android.util.SparseArray;
+import android.util.SparseLongArray;
 import com.google.gson.Gson;
 
 import cyanogenmod.providers.DataUsageContract;
-import cyanogenmod.providers.CMSettings;
 
 
 /**
@@ -84,38 +82,28 @@ public class DataUsageService extends IntentService {
     private INetworkStatsService mStatsService;
     private INetworkStatsSession mStatsSession;
     private NetworkTemplate mTemplate;
+    private NetworkTemplate mWifiTemplate;
     private SubscriptionManager mSubscriptionManager;
     private List<SubscriptionInfo> mSubInfoList;
     private Map<Integer,String> mMobileTagMap;
-    private UserManager mUserManager;
-    private List<UserHandle> mProfiles;
+    private DataUsageUserTable mUsers;
     private long mLargest;
-    private int mCurrentUserId;
     private UidDetailProvider mUidDetailProvider;
     SparseArray<AppItem> mKnownItems;
-    private NotificationManager mNotificationManager;
-
-    // quick way to generate warnings
-    // TODO - set to false before releasing
-    private static final boolean FAST_MODE = false;
-
-    // specifies minimum number of samples to collect before running algorithm
-    // 1 hours worth of active traffic to establish a baseline
-    private static final int MIN_SLOW_SAMPLE_COUNT = FAST_MODE ? 5 : 60;
-    // 5 min worth of active traffic
-    private static final int MIN_FAST_SAMPLE_COUNT = FAST_MODE ? 1 : 5;
-
-    // specifies percentage by which fast average must exceed slow avg to trigger a warning
-    // one standard deviation - or should it be 34%, since we are only looking at above and not
-    // below. And how many standard deviations should it be?
-    private static final int WARNING_PERCENTAGE = FAST_MODE ? 10 : 68;
+    private DataUsageStateCache mStates;
+    private DataUsageCycleTrigger mTrigger;
+    private DataUsageNotificationAggregator mNotifications;
+    // per app updates of the current cycle, applied as a single batch
+    private ArrayList<ContentProviderOperation> mPendingUpdates;
 
     // specifies the number of samples to keep in the database for postprocessing and
     // algorithm evaluation
     private final static int MAX_EXTRA_SAMPLE_COUNT = 1000;
 
-    // specifies maximum bw that is still considered as idle - to discard pings, etc...
-    private static final long MAX_IDLE_BW = 5 * 1024;
+    // apps outside of the largest consumers are evaluated once every SAMPLE_STRIDE cycles
+    static final int SAMPLE_STRIDE = 10;
+    // evaluated apps a cycle may merge, over all detectors, before it defers the others
+    private static final int MAX_CYCLE_WORK = 4096;
     // specifies the sample period in msec
     public static final long SAMPLE_PERIOD = 60000;
     public static final long START_DELAY = 60000;
@@ -127,7 +115,9 @@ public class DataUsageService extends IntentService {
             "org.cyanogenmod.providers.datausage.hide_action";
     public static final String DISABLE_ACTION   =
             "org.cyanogenmod.providers.datausage.disable_action";
-    public static final int DATA_USAGE_BROADCAST_REQUEST_CODE   = 0x102040; // TODO - ???
+    // a warning was swiped away, without a uid for the group summary
+    public static final String DISMISS_ACTION   =
+            "org.cyanogenmod.providers.datausage.dismiss_action";
     public static final String DATA_USAGE_NOTIFICATION_UID   =
             "org.cyanogenmod.providers.datausage.notification_uid";
     public static final String DATA_USAGE_NOTIFICATION_TITLE =
@@ -151,6 +141,19 @@ public class DataUsageService extends IntentService {
     protected void onHandleIntent(Intent intent) {
         mContext = this;
 
+        // most alarms end here, after a read of the device counters
+        int network = DataUsageUtils.getQualifiedNetwork(mContext);
+        mStates = DataUsageStateCache.getInstance(mContext);
+        mTrigger = DataUsageCycleTrigger.getInstance();
+        if (!mTrigger.shouldRunCycle(network, mStates.hasPendingChanges())) {
+            return;
+        }
+
+        mCycleStart = SystemClock.elapsedRealtime();
+        mWork = 0;
+        mDeferred = 0;
+        mOverBudget = false;
+
         // initialize various networking managers/interfaces/sessions/etc...
         mStatsService = INetworkStatsService.Stub.asInterface(
                 ServiceManager.getService(Context.NETWORK_STATS_SERVICE));
@@ -162,19 +165,29 @@ public class DataUsageService extends IntentService {
             mMobileTagMap = initMobileTabTag(mSubInfoList);
             mTemplate = buildTemplateMobileAll(
                     getActiveSubscriberId(mContext, getSubId(TAB_MOBILE + "1")));
+            mWifiTemplate = buildTemplateWifiWildcard();
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException: " + e.getMessage());
         }
 
-        mUserManager = (UserManager)mContext.getSystemService(Context.USER_SERVICE);
-        mProfiles = mUserManager.getUserProfiles();
-        mCurrentUserId = ActivityManager.getCurrentUser();
+        mUsers = DataUsageUserTable.getInstance(mContext);
+        mUsers.refreshIfStale();
         mUidDetailProvider = new UidDetailProvider(mContext);
         mKnownItems = new SparseArray<AppItem>();
-        mNotificationManager = (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
+        mPendingUpdates = new ArrayList<ContentProviderOperation>();
+        mNotifications = DataUsageNotificationAggregator.getInstance(mContext);
 
-        // run the actual dataUsage collection and processing
-        dataUsageUpdate();
+        // run the actual dataUsage collection and processing, a shutdown checkpoint waits
+        // for it to end
+        long threshold;
+        mStates.lock();
+        try {
+            threshold = dataUsageUpdate(network);
+        } finally {
+            mStates.unlock();
+        }
+        mTrigger.onCycleFinished(network, threshold,
+                SystemClock.elapsedRealtime() - mCycleStart, mDeferred);
     }
 
     private static String getActiveSubscriberId(Context context, int subId) {
@@ -224,6 +237,13 @@ public class DataUsageService extends IntentService {
         }
         item.addUid(uid);
         item.total += entry.rxBytes + entry.txBytes;
+        if (entry.set == NetworkStats.SET_FOREGROUND) {
+            item.foregroundRxBytes += entry.rxBytes;
+            item.foregroundTxBytes += entry.txBytes;
+        } else {
+            item.backgroundRxBytes += entry.rxBytes;
+            item.backgroundTxBytes += entry.txBytes;
+        }
         if (mLargest < item.total) {
             mLargest = item.total;
         }
@@ -235,6 +255,10 @@ public class DataUsageService extends IntentService {
             int key = mKnownItems.keyAt(i);
             AppItem appItem = mKnownItems.get(key);
             appItem.total = 0;
+            appItem.foregroundRxBytes = 0;
+            appItem.foregroundTxBytes = 0;
+            appItem.backgroundRxBytes = 0;
+            appItem.backgroundTxBytes = 0;
         }
     }
 
@@ -242,25 +266,73 @@ public class DataUsageService extends IntentService {
         ArrayList<Long> samples;
     }
     private String mAppWarnExtra;
+    // detector state was queued for the provider this cycle
+    private boolean mStateWritten;
+    // budget of the cycle in progress, see isOverBudget()
+    private long mCycleStart;
+    private int mWork;
+    private int mDeferred;
+    private boolean mOverBudget;
 
-    private void dataUsageUpdate() {
+    /**
+     * Run a collection cycle on network, returns the number of bytes the device has to move
+     * before the outcome of the next cycle can differ
+     */
+    private long dataUsageUpdate(int network) {
         long startTime = 0;
         long endTime = System.currentTimeMillis();
         mLargest = 0;
 
-        clearStats();
+        // pick up enable/disable changes made since the last cycle
+        mStates.sync();
+        int lastNetwork = mStates.getLastNetwork();
+        mStates.setLastNetwork(network);
+        if (mStates.size() == 0 || network == DataUsageUtils.NETWORK_NONE) {
+            // no app has warnings enabled, or no monitored network in use
+            DataUsageBurstMonitor.getInstance(mContext).stop();
+            return DataUsageCycleTrigger.NO_THRESHOLD;
+        }
+
+        // each network has detectors of its own, which only take samples while the network
+        // stays in use: the first cycle on a network re-establishes their byte baseline, since
+        // its counters may have moved while it was not collected (e.g. an unmetered Wi-Fi).
+        // The same goes for the first cycle of the process, as the baselines of the apps that
+        // were not evaluated were only kept in memory.
+        // Home and roaming share the mobile template, so a cycle is a single stats query no
+        // matter how many networks are monitored
+        boolean rebaseline = lastNetwork != network;
+        NetworkTemplate template = network == DataUsageUtils.NETWORK_WIFI_METERED ?
+                mWifiTemplate : mTemplate;
+
+        // only the dimensions selected by the alert policy are evaluated, a dimension that
+        // was just selected re-establishes its baseline like a network that was just entered
+        int dimensions = DataUsageUtils.getAlertDimensions(mContext);
+        int lastDimensions = lastNetwork != DataUsageStateCache.NETWORK_UNKNOWN ?
+                mStates.getLastDimensions() : dimensions;
+        mStates.setLastDimensions(dimensions);
 
         NetworkStats networkStats = null;
         try {
             if (mStatsSession != null) {
-                networkStats = mStatsSession.getSummaryForAllUid(mTemplate, startTime, endTime,
+                networkStats = mStatsSession.getSummaryForAllUid(template, startTime, endTime,
                         false);
             }
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException: " + e.getMessage());
         }
 
-        // collect network stats for all app consuming bw
+        Calendar now = Calendar.getInstance();
+        if (networkStats != null && isDeviceIdle(networkStats.getTotalBytes(),
+                rebaseline || dimensions != lastDimensions || hasQuotaRollover(now))) {
+            // nothing the detectors could act on, the apps' baselines stay where they are
+            // and absorb this cycle's bytes at the next evaluated cycle
+            return DataUsageCycleTrigger.KEEP_THRESHOLD;
+        }
+
+        clearStats();
+        mNotifications.beginCycle();
+
+        // collect network stats for the monitored apps consuming bw
         if (networkStats != null) {
             int size = networkStats.size();
             NetworkStats.Entry entry = null;
@@ -272,186 +344,586 @@ public class DataUsageService extends IntentService {
                 int uid = entry.uid;
                 int userId = UserHandle.getUserId(uid);
                 if (UserHandle.isApp(uid)) {
-                    if (mProfiles.contains(new UserHandle(userId))) {
-                        if (userId != mCurrentUserId) {
+                    int kind = mUsers.getKind(userId);
+                    if (kind == DataUsageUserTable.KIND_CURRENT ||
+                            kind == DataUsageUserTable.KIND_PROFILE) {
+                        if (kind == DataUsageUserTable.KIND_PROFILE) {
                             // add to a managed user item
                             int managedKey = UidDetailProvider.buildKeyForUser(userId);
-                            accumulate(managedKey, entry, AppItem.CATEGORY_USER);
+                            if (mStates.contains(managedKey)) {
+                                accumulate(managedKey, entry, AppItem.CATEGORY_USER);
+                            }
                         }
                         collapseKey = uid;
                         category = AppItem.CATEGORY_APP;
+                    } else if (kind == DataUsageUserTable.KIND_REMOVED) {
+                        // add it to the removed users' key
+                        collapseKey = UID_REMOVED;
+                        category = AppItem.CATEGORY_APP;
                     } else {
-                        // if it is a removed user, add it to the removed users' key
-                        UserInfo userInfo = mUserManager.getUserInfo(userId);
-                        if (userInfo == null) {
-                            collapseKey = UID_REMOVED;
-                            category = AppItem.CATEGORY_APP;
-                        } else {
-                            collapseKey = UidDetailProvider.buildKeyForUser(userId);
-                            category = AppItem.CATEGORY_USER;
-                        }
+                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                        category = AppItem.CATEGORY_USER;
+                    }
+                    if (mStates.contains(collapseKey)) {
+                        accumulate(collapseKey, entry, category);
                     }
-                    accumulate(collapseKey, entry, category);
                 }
             }
         }
-        boolean appWarnActive = false;
-        long appWarnBytes = 0;
-        long appWarnUid;
-        int appWarnSlowSamples;
-        int appWarnFastSamples;
-        long appWarnSlowAvg;
-        long appWarnFastAvg;
-        String appWarnExtra = "";
-
-        // lookup Apps in the DB that have warning enabled
-        Cursor cursor = getContentResolver().query(
-                DataUsageContract.CONTENT_URI,
-                null,       // projection - return all
-                DataUsageContract.ENABLE + " = ? ",
-                new String [] { "1" },
-                null
-        );
-        if (cursor == null) {
-            return;
+        // advance the byte budgets
+        long threshold = DataUsageCycleTrigger.NO_THRESHOLD;
+        if (networkStats != null) {
+            threshold = enforceQuotas(network, now);
+            updateDeviceForecast(network, networkStats.getTotalBytes(), now);
         }
 
-        while(cursor.moveToNext()) {
-            appWarnUid = cursor.getInt(DataUsageContract.COLUMN_OF_UID);
-            appWarnActive = cursor.getInt(DataUsageContract.COLUMN_OF_ACTIVE) > 0;
-            appWarnBytes = cursor.getLong(DataUsageContract.COLUMN_OF_BYTES);
-            appWarnSlowSamples = cursor.getInt(DataUsageContract.COLUMN_OF_SLOW_SAMPLES);
-            appWarnSlowAvg = cursor.getLong(DataUsageContract.COLUMN_OF_SLOW_AVG);
-            appWarnFastSamples = cursor.getInt(DataUsageContract.COLUMN_OF_FAST_SAMPLES);
-            appWarnFastAvg = cursor.getLong(DataUsageContract.COLUMN_OF_FAST_AVG);
-            mAppWarnExtra = cursor.getString(DataUsageContract.COLUMN_OF_EXTRA);
+        // evaluate the Apps that have warning enabled, apps with an active warning are
+        // watched by the burst monitor rather than held in the device threshold
+        SparseLongArray suspects = new SparseLongArray();
+        int cycle = mStates.nextCycle();
+        DataUsageEvaluator evaluator = new DataUsageEvaluator();
+        DataUsagePolicyTable policies = mStates.getPolicies();
+        // every detector starts at the first app the last cycle over budget deferred
+        int start = mStates.getResumeIndex();
+        boolean resumeSet = false;
+        int hour = now.get(Calendar.HOUR_OF_DAY);
+        for (int dimension = 0; dimension < DataUsageStateCache.DIMENSION_COUNT; dimension++) {
+            int bit = 1 << dimension;
+            if ((dimensions & bit) == 0) {
+                continue;
+            }
+            if (isOverBudget()) {
+                // left as they are, for the next cycle
+                mDeferred += mStates.size();
+                continue;
+            }
+            int detectorId = DataUsageStateCache.detectorId(network, dimension);
+            DataUsageDetectorTable detector = mStates.getDetector(detectorId);
+            DataUsageHeavyHitters heavyHitters = mStates.getHeavyHitters(detectorId);
+            boolean dimensionRebaseline = rebaseline || (lastDimensions & bit) == 0;
+
+            // inputs: every enabled app gets an entry first, so that slots are stable
+            int size = mStates.size();
+            for (int index = 0; index < size; index++) {
+                detector.put(mStates.uidAt(index));
+            }
+            evaluator.reset(size, dimensionRebaseline);
+            for (int index = 0; index < size; index++) {
+                int uid = mStates.uidAt(index);
+                evaluator.load(index, uid, detector, detector.indexOfUid(uid));
+                evaluator.loadPolicy(index, policies, hour);
+                AppItem appItem = mKnownItems.get(uid);
+                if (appItem != null) {
+                    evaluator.bytes[index] = getDimensionBytes(appItem, dimension);
+                    // rank the apps by this cycle's bytes
+                    heavyHitters.offer(uid, evaluator.getBytesDelta(index));
+                }
+            }
+            heavyHitters.endCycle();
+            for (int index = 0; index < size; index++) {
+                evaluator.evaluate[index] = mKnownItems.get(evaluator.uids[index]) != null &&
+                        (dimensionRebaseline || shouldEvaluate(evaluator, index, heavyHitters,
+                                cycle));
+            }
 
-            AppItem appItem = mKnownItems.get((int)appWarnUid);
+            // compute, sharded for large populations
+            evaluator.compute();
+
+            // merge, in index order from the resume point
+            for (int i = 0; i < size; i++) {
+                int index = (start + i) % size;
+                if (isOverBudget()) {
+                    // the apps left keep their baseline, so that the next cycle sees the
+                    // bytes of this one too
+                    if (!resumeSet) {
+                        mStates.setResumeUid(evaluator.uids[index]);
+                        resumeSet = true;
+                    }
+                    mDeferred += size - i;
+                    break;
+                }
+                if (evaluator.evaluate[index]) {
+                    mWork++;
+                }
+                merge(network, dimension, detectorId, detector, evaluator, index);
+                long trip = evaluator.getRemainingTripBytes(index);
+                if (evaluator.active[index]) {
+                    int uid = evaluator.uids[index];
+                    suspects.put(uid, Math.min(trip, suspects.get(uid, trip)));
+                } else {
+                    threshold = Math.min(threshold, trip);
+                }
+            }
+        }
+        threshold = Math.min(threshold,
+                DataUsageBurstMonitor.getInstance(mContext).watch(suspects));
 
-            if (appItem != null) {
-                final UidDetail detail = mUidDetailProvider.getUidDetail(appItem.key, true);
-                long bytesDelta = appWarnBytes == 0 ? 0 : appItem.total - appWarnBytes;
-                if (DEBUG) {
-                    Log.v(TAG, detail.label.toString() +
-                            " cur:" + appItem.total +
-                            " prev:" + appWarnBytes +
-                            " SlowSamples:" + appWarnSlowSamples +
-                            " SlowAvg:" + appWarnSlowAvg +
-                            " FastSamples:" + appWarnFastSamples +
-                            " FastAvg:" + appWarnFastAvg
-                    );
+        if (mDeferred == 0) {
+            mStates.clearResume();
+        }
+
+        // write: detector state goes to the provider every so often only, and the checkpoint
+        // is never older than what the provider holds. A cycle over budget postpones the
+        // flush and saves its progress to the checkpoint
+        if (mStates.isFlushDue() && !mOverBudget) {
+            flushDirty();
+        }
+        applyPendingUpdates();
+        mStates.checkpoint(mStateWritten || mOverBudget);
+        mStateWritten = false;
+        mNotifications.endCycle();
+        return threshold;
+    }
+
+    /**
+     * Advance the running counters of the apps that have a byte budget by the bytes they
+     * moved since the previous cycle, and turn off the cellular data of an app exceeding
+     * one of its budgets, posting a single notification. A counter of a past period starts
+     * over, and turns the app's data back on once no budget is exceeded anymore if it was
+     * the collector that turned it off, so every app costs O(1) and the usage history is
+     * never read. Only cellular bytes count, as that is what the uid policy restricts. The
+     * counters also feed the apps' end of cycle usage forecasts. Returns the bytes left
+     * before the next budget is reached.
+     */
+    private long enforceQuotas(int network, Calendar now) {
+        DataUsageQuotaTable quotas = mStates.getQuotas();
+        boolean cellular = network == DataUsageUtils.NETWORK_MOBILE ||
+                network == DataUsageUtils.NETWORK_ROAMING;
+        int dailyPeriod = DataUsageQuotaTable.getDailyPeriod(now);
+        long time = now.getTimeInMillis();
+        long headroom = DataUsageCycleTrigger.NO_THRESHOLD;
+        NetworkPolicyManager policyManager = null;
+
+        for (int index = 0; index < quotas.size(); index++) {
+            int uid = quotas.uidAt(index);
+            long delta = 0;
+            if (!cellular) {
+                // a later cellular cycle must not count the bytes of this network
+                quotas.setWatermark(index, DataUsageQuotaTable.NO_WATERMARK);
+            } else {
+                AppItem appItem = mKnownItems.get(uid);
+                long total = appItem != null ? appItem.total : 0;
+                long watermark = quotas.getWatermark(index);
+                if (watermark != DataUsageQuotaTable.NO_WATERMARK && total >= watermark) {
+                    delta = total - watermark;
                 }
-                if (bytesDelta > MAX_IDLE_BW) {
-                    // enough BW consumed during this sample - evaluate algorithm
-                    if (appWarnSlowSamples < MIN_SLOW_SAMPLE_COUNT) {
-                        // not enough samples acquired for the slow average, keep accumulating
-                        // samples
-                        appWarnSlowAvg = computeAvg(appWarnSlowAvg, appWarnSlowSamples,
-                                MIN_SLOW_SAMPLE_COUNT, bytesDelta);
-                        appWarnSlowSamples++;
-
-                        // fast average requires fewer samples than slow average, so at this point
-                        // we may have accumulated enough or not, need to check
-                        if (appWarnFastSamples < MIN_FAST_SAMPLE_COUNT) {
-                            // not enough fast samples
-                            appWarnFastAvg = computeAvg(appWarnFastAvg, appWarnFastSamples,
-                                    MIN_FAST_SAMPLE_COUNT, bytesDelta);
-                            appWarnFastSamples++;
-                        } else {
-                            // enough fast samples
-                            appWarnFastAvg = computeAvg(appWarnFastAvg, appWarnFastSamples,
-                                    MIN_FAST_SAMPLE_COUNT, bytesDelta);
-                        }
+                quotas.setWatermark(index, total);
+            }
 
-                        updateDb(appItem.key,
-                                appWarnSlowAvg, appWarnSlowSamples,
-                                appWarnFastAvg, appWarnFastSamples,
-                                0, appItem.total);
-                    } else {
-                        // enough samples acquired for the average, evaluate warning algorithm
-                        float avgExceedPercent = appWarnFastAvg-appWarnSlowAvg;
-                        avgExceedPercent /= appWarnSlowAvg;
-                        avgExceedPercent *= 100;
-
-                        if ((appWarnFastAvg > appWarnSlowAvg) && (avgExceedPercent >
-                                WARNING_PERCENTAGE)) {
-                            genNotification(appItem.key, detail.label.toString(), !appWarnActive);
-                            if (!appWarnActive) {
-                                appWarnActive = true;
-                            }
-                        } else {
-                            appWarnActive = false;
-                        }
-                        appWarnSlowAvg = computeAvg(appWarnSlowAvg, appWarnSlowSamples,
-                                MIN_SLOW_SAMPLE_COUNT, bytesDelta);
-                        appWarnFastAvg = computeAvg(appWarnFastAvg, appWarnFastSamples,
-                                MIN_FAST_SAMPLE_COUNT, bytesDelta);
-                        updateDb(
-                                appItem.key,
-                                appWarnSlowAvg, appWarnSlowSamples,
-                                appWarnFastAvg, appWarnFastSamples,
-                                appWarnActive ? 1 : 0, appItem.total
-                        );
+            int monthlyPeriod = DataUsageQuotaTable.getMonthlyPeriod(now,
+                    quotas.getCycleDay(index));
+            boolean rollover = quotas.getDailyPeriod(index) != dailyPeriod ||
+                    quotas.getMonthlyPeriod(index) != monthlyPeriod;
+            long dailyBytes = delta + (quotas.getDailyPeriod(index) == dailyPeriod ?
+                    quotas.getDailyBytes(index) : 0);
+            long monthlyBytes = delta + (quotas.getMonthlyPeriod(index) == monthlyPeriod ?
+                    quotas.getMonthlyBytes(index) : 0);
+            long dailyQuota = quotas.getDailyQuota(index);
+            long monthlyQuota = quotas.getMonthlyQuota(index);
+
+            int exceeded = 0;
+            if (dailyQuota > 0) {
+                if (dailyBytes >= dailyQuota) {
+                    exceeded |= DataUsageProvider.QUOTA_DAILY;
+                } else {
+                    headroom = Math.min(headroom, dailyQuota - dailyBytes);
+                }
+            }
+            if (monthlyQuota > 0) {
+                if (monthlyBytes >= monthlyQuota) {
+                    exceeded |= DataUsageProvider.QUOTA_MONTHLY;
+                } else {
+                    headroom = Math.min(headroom, monthlyQuota - monthlyBytes);
+                }
+            }
 
+            int lastState = quotas.getState(index);
+            boolean wasExceeded = (lastState & DataUsageProvider.QUOTA_EXCEEDED) != 0;
+            // the policy stays the collector's for as long as a budget is exceeded
+            int state = exceeded == 0 ? 0 :
+                    exceeded | (lastState & DataUsageProvider.QUOTA_REJECTED);
+            if (delta == 0 && !rollover && state == lastState) {
+                continue;
+            }
+
+            // the forecast takes a sample covering the time since its previous one
+            long level = quotas.getLevel(index);
+            long trend = quotas.getTrend(index);
+            long elapsed = time - quotas.getForecastTime(index);
+            if (quotas.getForecastTime(index) > 0 && elapsed > 0) {
+                long nextLevel = DataUsageForecast.nextLevel(level, trend, delta, elapsed);
+                trend = DataUsageForecast.nextTrend(level, nextLevel, trend, elapsed);
+                level = nextLevel;
+            }
+            quotas.setForecast(index, level, trend, time);
+
+            if (wasExceeded != (exceeded != 0)) {
+                if (policyManager == null) {
+                    policyManager = NetworkPolicyManager.from(mContext);
+                }
+                if (!wasExceeded) {
+                    // an app the user already turned off is left to the user
+                    if ((policyManager.getUidPolicy(uid) & POLICY_REJECT_ON_DATA) == 0) {
+                        policyManager.addUidPolicy(uid, POLICY_REJECT_ON_DATA);
+                        state |= DataUsageProvider.QUOTA_REJECTED;
                     }
+                    final UidDetail detail = mUidDetailProvider.getUidDetail(uid, true);
+                    mNotifications.postQuotaReached(uid, detail.label.toString(),
+                            (state & DataUsageProvider.QUOTA_DAILY) == 0);
                 } else {
-                    // not enough BW consumed during this sample - simply update bytes
-                    updateDb(appItem.key, appItem.total);
+                    if ((lastState & DataUsageProvider.QUOTA_REJECTED) != 0) {
+                        policyManager.removeUidPolicy(uid, POLICY_REJECT_ON_DATA);
+                    }
+                    mNotifications.cancelQuotaReached(uid);
+                }
+                if (DEBUG) {
+                    Log.v(TAG, "enforceQuotas: uid:" + uid + " state:" + lastState + "->" +
+                            state + " daily:" + dailyBytes + " monthly:" + monthlyBytes);
                 }
             }
+
+            quotas.setCounters(index, dailyBytes, monthlyBytes, dailyPeriod, monthlyPeriod,
+                    state);
+            ContentValues values = new ContentValues();
+            values.put(DataUsageProvider.DAILY_BYTES, dailyBytes);
+            values.put(DataUsageProvider.MONTHLY_BYTES, monthlyBytes);
+            values.put(DataUsageProvider.DAILY_PERIOD, dailyPeriod);
+            values.put(DataUsageProvider.MONTHLY_PERIOD, monthlyPeriod);
+            values.put(DataUsageProvider.QUOTA_STATE, state);
+            values.put(DataUsageProvider.FORECAST_LEVEL, level);
+            values.put(DataUsageProvider.FORECAST_TREND, trend);
+            values.put(DataUsageProvider.FORECAST_TIME, time);
+            queueUpdate(uid, values);
         }
-        cursor.close();
+        return headroom;
     }
 
-    long computeAvg(long avg, int samples, int min_samples, long delta) {
-        float temp;
+    /**
+     * Advance the running counter and the forecast of the device's mobile plan, the
+     * device level counterpart of the apps' budgets
+     */
+    private void updateDeviceForecast(int network, long total, Calendar now) {
+        if (network != DataUsageUtils.NETWORK_MOBILE &&
+                network != DataUsageUtils.NETWORK_ROAMING) {
+            mStates.setDeviceQuotaWatermark(DataUsageQuotaTable.NO_WATERMARK);
+            return;
+        }
+        long watermark = mStates.getDeviceQuotaWatermark();
+        mStates.setDeviceQuotaWatermark(total);
+        long delta = watermark != DataUsageQuotaTable.NO_WATERMARK && total >= watermark ?
+                total - watermark : 0;
+
+        int cycleDay = 1;
+        long limit = 0;
+        NetworkPolicy[] policies = NetworkPolicyManager.from(mContext).getNetworkPolicies();
+        if (policies != null) {
+            for (NetworkPolicy policy : policies) {
+                if (mTemplate != null && mTemplate.equals(policy.template)) {
+                    cycleDay = policy.cycleDay;
+                    limit = Math.max(0, policy.limitBytes);
+                    break;
+                }
+            }
+        }
 
-        if (samples < min_samples) {
-            temp = avg * samples;
-            temp += delta;
-            temp /= (samples + 1);
-            return (long)temp;
-        } else {
-            temp = avg * (samples - 1);
-            temp += delta;
-            temp /= samples;
-            return (long)temp;
+        SharedPreferences prefs = getSharedPreferences(DataUsageUtils.PREF_FILE,
+                Context.MODE_PRIVATE);
+        int period = DataUsageQuotaTable.getMonthlyPeriod(now, cycleDay);
+        long cycleBytes = delta;
+        if (prefs.getInt(DataUsageUtils.PREF_DEVICE_CYCLE_PERIOD, 0) == period) {
+            cycleBytes += prefs.getLong(DataUsageUtils.PREF_DEVICE_CYCLE_BYTES, 0);
         }
+        long level = prefs.getLong(DataUsageUtils.PREF_DEVICE_FORECAST_LEVEL, 0);
+        long trend = prefs.getLong(DataUsageUtils.PREF_DEVICE_FORECAST_TREND, 0);
+        long lastTime = prefs.getLong(DataUsageUtils.PREF_DEVICE_FORECAST_TIME, 0);
+        long time = now.getTimeInMillis();
+        if (lastTime > 0 && time > lastTime) {
+            long nextLevel = DataUsageForecast.nextLevel(level, trend, delta, time - lastTime);
+            trend = DataUsageForecast.nextTrend(level, nextLevel, trend, time - lastTime);
+            level = nextLevel;
+        }
+
+        prefs.edit()
+                .putInt(DataUsageUtils.PREF_DEVICE_CYCLE_DAY, cycleDay)
+                .putLong(DataUsageUtils.PREF_DEVICE_LIMIT, limit)
+                .putInt(DataUsageUtils.PREF_DEVICE_CYCLE_PERIOD, period)
+                .putLong(DataUsageUtils.PREF_DEVICE_CYCLE_BYTES, cycleBytes)
+                .putLong(DataUsageUtils.PREF_DEVICE_FORECAST_LEVEL, level)
+                .putLong(DataUsageUtils.PREF_DEVICE_FORECAST_TREND, trend)
+                .putLong(DataUsageUtils.PREF_DEVICE_FORECAST_TIME, time)
+                .apply();
     }
 
+    /**
+     * Returns whether an app's exceeded budget belongs to a past period, so that a cycle
+     * runs to turn its data back on even when the device is idle
+     */
+    private boolean hasQuotaRollover(Calendar now) {
+        DataUsageQuotaTable quotas = mStates.getQuotas();
+        int dailyPeriod = DataUsageQuotaTable.getDailyPeriod(now);
+        for (int index = 0; index < quotas.size(); index++) {
+            int state = quotas.getState(index);
+            if (((state & DataUsageProvider.QUOTA_DAILY) != 0 &&
+                    quotas.getDailyPeriod(index) != dailyPeriod) ||
+                    ((state & DataUsageProvider.QUOTA_MONTHLY) != 0 &&
+                    quotas.getMonthlyPeriod(index) != DataUsageQuotaTable.getMonthlyPeriod(
+                            now, quotas.getCycleDay(index)))) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-    private void updateDb(int uid, long bytes) {
-        ContentValues values = new ContentValues();
+    /**
+     * Returns whether to run the full detector evaluation of an app this cycle, which is
+     * the case for the largest consumers, for a rotating sample of the others (every app
+     * once every SAMPLE_STRIDE cycles), and for every app whose bytes since its last
+     * evaluation reach its trip bytes. The latter is an exact per app check, independent of
+     * the accuracy of the sketch: a sample that can raise a warning on its own, and any
+     * sample above the idle bytes of a detector still learning or with an active warning,
+     * is never skipped.
+     *
+     * What is skipped are the samples of trained detectors without a warning that fall
+     * between the idle bytes and the trip bytes. Evaluated, they would have moved the
+     * averages without warning; skipped, they are missing from both averages, which then
+     * approximate the app's usage from the cycles that were evaluated. A warning that would
+     * only build up over several such samples is caught late, by the rotating sample or once
+     * the carried bytes reach the trip bytes.
+     */
+    private static boolean shouldEvaluate(DataUsageEvaluator evaluator, int index,
+            DataUsageHeavyHitters heavyHitters, int cycle) {
+        int uid = evaluator.uids[index];
+        return evaluator.getPendingBytes(index) >= evaluator.getTripBytes(index) ||
+                heavyHitters.isTop(uid) ||
+                (uid & Integer.MAX_VALUE) % SAMPLE_STRIDE == cycle % SAMPLE_STRIDE;
+    }
+
+    /**
+     * Returns whether the cycle in progress used up its time or work budget, after which it
+     * defers the apps it did not merge yet to the next cycle
+     */
+    private boolean isOverBudget() {
+        if (!mOverBudget && (mWork >= MAX_CYCLE_WORK || SystemClock.elapsedRealtime() -
+                mCycleStart >= DataUsageCycleTrigger.CYCLE_TIME_BUDGET)) {
+            mOverBudget = true;
+        }
+        return mOverBudget;
+    }
+
+    /**
+     * Device level first stage of a cycle: returns whether the whole device moved so little
+     * since the last evaluated cycle that the per app evaluation can be skipped, i.e. less
+     * than the idle bandwidth of every monitored app together, and less than the device
+     * usually moves per cycle. Skipped cycles do not move the watermark, so the bytes they
+     * leave to the next evaluated cycle stay below that bound.
+     */
+    private boolean isDeviceIdle(long total, boolean force) {
+        long watermark = mStates.getDeviceWatermark();
+        boolean comparable = !force && total >= watermark;
+        long delta = total - watermark;
+        if (comparable && delta < mStates.getIdleBytes() &&
+                delta < mStates.getDeviceAverage()) {
+            if (DEBUG) {
+                Log.v(TAG, "isDeviceIdle: delta:" + delta + " avg:" +
+                        mStates.getDeviceAverage());
+            }
+            return true;
+        }
+        mStates.onDeviceEvaluated(total, comparable ? delta : -1);
+        return false;
+    }
+
+    /**
+     * Apply the result of an app to its detector, and queue its provider update and warning
+     */
+    private void merge(int network, int dimension, int detectorId,
+            DataUsageDetectorTable detector, DataUsageEvaluator evaluator, int index) {
+        int uid = evaluator.uids[index];
+        int slot = detector.indexOfUid(uid);
+        long bytes = evaluator.bytes[index];
+
+        if (DEBUG && evaluator.result[index] != DataUsageEvaluator.RESULT_SKIP) {
+            Log.v(TAG, "uid:" + uid +
+                    " network:" + network +
+                    " dimension:" + dimension +
+                    " cur:" + bytes +
+                    " prev:" + evaluator.baseline[index] +
+                    " SlowSamples:" + evaluator.slowSamples[index] +
+                    " SlowAvg:" + evaluator.slowAvg[index] +
+                    " FastSamples:" + evaluator.fastSamples[index] +
+                    " FastAvg:" + evaluator.fastAvg[index]
+            );
+        }
+
+        switch (evaluator.result[index]) {
+            case DataUsageEvaluator.RESULT_SKIP:
+                detector.setBytes(slot, bytes);
+                break;
+            case DataUsageEvaluator.RESULT_BYTES:
+                updateDb(detectorId, detector, slot, bytes);
+                break;
+            case DataUsageEvaluator.RESULT_STATE:
+                updateDb(detectorId, detector, slot,
+                        evaluator.slowAvg[index], evaluator.slowSamples[index],
+                        evaluator.fastAvg[index], evaluator.fastSamples[index],
+                        evaluator.active[index] ? 1 : 0, bytes);
+                break;
+        }
+        detector.setCarried(slot, evaluator.getNextCarried(index));
+
+        if (evaluator.warn[index]) {
+            final UidDetail detail = mUidDetailProvider.getUidDetail(uid, true);
+            mNotifications.addWarning(uid,
+                    getAlertLabel(network, dimension, detail.label.toString()),
+                    evaluator.warnFirstTime[index]);
+        }
+    }
+
+    private static long getDimensionBytes(AppItem appItem, int dimension) {
+        switch (dimension) {
+            case DataUsageStateCache.DIMENSION_BACKGROUND:
+                return appItem.backgroundRxBytes + appItem.backgroundTxBytes;
+            case DataUsageStateCache.DIMENSION_UPLOAD:
+                return appItem.foregroundTxBytes + appItem.backgroundTxBytes;
+            default:
+                return appItem.total;
+        }
+    }
+
+    private String getAlertLabel(int network, int dimension, String label) {
+        switch (dimension) {
+            case DataUsageStateCache.DIMENSION_BACKGROUND:
+                label = getString(R.string.data_usage_label_background, label);
+                break;
+            case DataUsageStateCache.DIMENSION_UPLOAD:
+                label = getString(R.string.data_usage_label_upload, label);
+                break;
+        }
+        switch (network) {
+            case DataUsageUtils.NETWORK_ROAMING:
+                return getString(R.string.data_usage_label_roaming, label);
+            case DataUsageUtils.NETWORK_WIFI_METERED:
+                return getString(R.string.data_usage_label_metered_wifi, label);
+            default:
+                return label;
+        }
+    }
+
+    /**
+     * Write all updates of this cycle in one transaction, so that observers of the provider
+     * are notified once per cycle instead of once per app
+     */
+    private void applyPendingUpdates() {
+        if (mPendingUpdates.isEmpty()) {
+            return;
+        }
+        try {
+            getContentResolver().applyBatch(DataUsageContract.DATAUSAGE_AUTHORITY,
+                    mPendingUpdates);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException: " + e.getMessage());
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "OperationApplicationException: " + e.getMessage());
+        }
+        mPendingUpdates.clear();
+    }
 
-        values.put(DataUsageContract.BYTES, bytes);
-        getContentResolver().update(
-                DataUsageContract.CONTENT_URI,
-                values,
-                DataUsageContract.UID + " = ? ",
-                new String[]{String.valueOf(uid)}
-        );
+    private boolean isHomeDetector(int detectorId) {
+        return detectorId == DataUsageStateCache.detectorId(DataUsageUtils.NETWORK_MOBILE,
+                DataUsageStateCache.DIMENSION_TOTAL);
+    }
+
+    private void updateDb(int detectorId, DataUsageDetectorTable detector, int index,
+            long bytes) {
+        detector.setBytes(index, bytes);
+        detector.setDirty(index, true);
     }
 
     private void updateDb(
-            int uid, long slowAvg, int slowSamples, long fastAvg, int fastSamples,
+            int detectorId, DataUsageDetectorTable detector, int index,
+            long slowAvg, int slowSamples, long fastAvg, int fastSamples,
             int active, long bytes
     ) {
+        boolean activeChanged = detector.isActive(index) != (active != 0);
+        detector.setState(index, slowAvg, slowSamples, fastAvg, fastSamples, active != 0,
+                bytes);
+        if (isHomeDetector(detectorId)) {
+            int uid = detector.uidAt(index);
+            mAppWarnExtra = mStates.getExtra(uid);
+            mStates.setExtra(uid, genExtraInfo(bytes));
+        }
+        if (activeChanged) {
+            // readers of the provider see a warning being raised or cleared right away
+            queueRowUpdate(detectorId, detector, index);
+            mStateWritten = true;
+        } else {
+            detector.setDirty(index, true);
+        }
+    }
+
+    /**
+     * Queue the write of all dirty detector entries to the provider
+     */
+    private void flushDirty() {
+        SparseArray<DataUsageDetectorTable> detectors = mStates.getDetectors();
+        for (int i = 0; i < detectors.size(); i++) {
+            DataUsageDetectorTable detector = detectors.valueAt(i);
+            for (int index = 0; index < detector.size(); index++) {
+                if (detector.isDirty(index)) {
+                    queueRowUpdate(detectors.keyAt(i), detector, index);
+                }
+            }
+        }
+        mStates.onFlushed();
+        mStateWritten = true;
+    }
+
+    private void queueRowUpdate(int detectorId, DataUsageDetectorTable detector, int index) {
+        detector.setDirty(index, false);
+        if (!isHomeDetector(detectorId)) {
+            queueDetectorUpdate(detectorId, detector, index);
+            return;
+        }
+
+        int uid = detector.uidAt(index);
         ContentValues values = new ContentValues();
-        String extraInfo = genExtraInfo(bytes);
-        values.put(DataUsageContract.SLOW_AVG, slowAvg);
-        values.put(DataUsageContract.SLOW_SAMPLES, slowSamples);
-        values.put(DataUsageContract.FAST_AVG, fastAvg);
-        values.put(DataUsageContract.FAST_SAMPLES, fastSamples);
-        values.put(DataUsageContract.ACTIVE, active);
-        values.put(DataUsageContract.BYTES, bytes);
-        values.put(DataUsageContract.EXTRA, extraInfo);
-
-        getContentResolver().update(
-                DataUsageContract.CONTENT_URI,
-                values,
-                DataUsageContract.UID + " = ? ",
-                new String[]{String.valueOf(uid)}
-        );
+        values.put(DataUsageContract.SLOW_AVG, detector.getSlowAvg(index));
+        values.put(DataUsageContract.SLOW_SAMPLES, detector.getSlowSamples(index));
+        values.put(DataUsageContract.FAST_AVG, detector.getFastAvg(index));
+        values.put(DataUsageContract.FAST_SAMPLES, detector.getFastSamples(index));
+        values.put(DataUsageContract.ACTIVE, detector.isActive(index) ? 1 : 0);
+        values.put(DataUsageContract.BYTES, detector.getBytes(index));
+        values.put(DataUsageContract.EXTRA, mStates.getExtra(uid));
+        queueUpdate(uid, values);
+    }
+
+    /**
+     * Replace the row of a detector other than the home network's
+     */
+    private void queueDetectorUpdate(int detectorId, DataUsageDetectorTable detector,
+            int index) {
+        ContentValues values = new ContentValues();
+        values.put(DataUsageContract.UID, detector.uidAt(index));
+        values.put(DataUsageProvider.DETECTOR, detectorId);
+        values.put(DataUsageContract.SLOW_AVG, detector.getSlowAvg(index));
+        values.put(DataUsageContract.SLOW_SAMPLES, detector.getSlowSamples(index));
+        values.put(DataUsageContract.FAST_AVG, detector.getFastAvg(index));
+        values.put(DataUsageContract.FAST_SAMPLES, detector.getFastSamples(index));
+        values.put(DataUsageContract.ACTIVE, detector.isActive(index) ? 1 : 0);
+        values.put(DataUsageContract.BYTES, detector.getBytes(index));
+        mPendingUpdates.add(ContentProviderOperation.newInsert(
+                DataUsageProvider.buildCollectorDetectorUri())
+                .withValues(values)
+                .build());
+    }
+
+    private void queueUpdate(int uid, ContentValues values) {
+        mPendingUpdates.add(ContentProviderOperation.newUpdate(
+                DataUsageProvider.buildCollectorUri())
+                .withValues(values)
+                .withSelection(DataUsageContract.UID + " = ? ",
+                        new String[]{String.valueOf(uid)})
+                .build());
     }
 
 
@@ -489,72 +961,4 @@ public class DataUsageService extends IntentService {
         String extraInfoJson = gson.toJson(extraInfo);
         return extraInfoJson;
     }
-
-
-
-    private void genNotification(long uid, String appTitle, boolean firstTime) {
-        Intent hideIntent = new Intent();
-        hideIntent.setAction(HIDE_ACTION);
-        hideIntent.putExtra(DATA_USAGE_NOTIFICATION_UID, uid);
-        hideIntent.putExtra(DATA_USAGE_NOTIFICATION_TITLE, appTitle);
-        PendingIntent hidePendingIntent = PendingIntent.getBroadcast(
-                mContext, DATA_USAGE_BROADCAST_REQUEST_CODE, hideIntent,
-                PendingIntent.FLAG_UPDATE_CURRENT
-        );
-
-        Intent disableIntent = new Intent();
-        disableIntent.setAction(DISABLE_ACTION);
-        disableIntent.putExtra(DATA_USAGE_NOTIFICATION_UID, uid);
-        disableIntent.putExtra(DATA_USAGE_NOTIFICATION_TITLE, appTitle);
-        PendingIntent disablePendingIntent = PendingIntent.getBroadcast(
-                mContext, DATA_USAGE_BROADCAST_REQUEST_CODE, disableIntent,
-                PendingIntent.FLAG_UPDATE_CURRENT
-        );
-
-        Intent dataUsageIntent = new Intent();
-        dataUsageIntent.setAction(cyanogenmod.providers.CMSettings.ACTION_DATA_USAGE);
-        dataUsageIntent.addCategory(Intent.CATEGORY_DEFAULT);
-        dataUsageIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        dataUsageIntent.addFlags(Intent.FLAG_ACTIVITY_NO_HISTORY);
-        dataUsageIntent.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
-
-        PendingIntent dataUsagePendingIntent = PendingIntent.getActivity(mContext, 0,
-                dataUsageIntent, 0);
-
-        // NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext)
-        Notification.Builder builder = new Notification.Builder(mContext)
-                .setSmallIcon(R.drawable.data_usage_48dp)
-                .setContentTitle(getResources().getString(R.string.data_usage_notify_title))
-                .setAutoCancel(true)        // remove notification when clicked on
-                .setContentText(appTitle)   // non-expanded view message
-                .setColor(mContext.getColor(R.color.data_usage_notification_icon_color))
-                .setStyle(new Notification.BigTextStyle()
-                        .bigText(getResources().getString(R.string.data_usage_notify_big_text, appTitle)));
-
-        if (firstTime) {
-            builder.addAction(
-                    // R.drawable.data_warning_disable,
-                    // android.R.drawable.stat_sys_data_bluetooth,
-                    R.drawable.data_usage_disable_24dp,
-                    getResources().getString(R.string.data_usage_disable_long),
-                    disablePendingIntent);
-        } else {
-            builder.addAction(
-                    // R.drawable.data_warning_disable,
-                    // android.R.drawable.stat_sys_data_bluetooth,
-                    R.drawable.data_usage_disable_24dp,
-                    getResources().getString(R.string.data_usage_disable_short),
-                    disablePendingIntent);
-            builder.addAction(
-                    // R.drawable.data_warning_hide,
-                    // android.R.drawable.stat_sys_download_done,
-                    R.drawable.data_usage_hide_24dp,
-                    getResources().getString(R.string.data_usage_hide),
-                    hidePendingIntent)
-            ;
-        }
-
-        builder.setContentIntent(dataUsagePendingIntent);
-        mNotificationManager.notify(DATA_USAGE_SERVICE_NOTIFICATION_ID, builder.build());
-    }
 }
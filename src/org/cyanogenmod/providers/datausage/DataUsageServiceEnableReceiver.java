@@ -24,10 +24,21 @@ public class DataUsageServiceEnableReceiver extends BroadcastReceiver {
     private static final String TAG = DataUsageServiceEnableReceiver.class.getSimpleName();
     public static final String PREF_FILE = "data_usage_service";
     public static final String PREF_ENB_DATA_USAGE_NOTIFY = "enb_data_usage_notify";
+    // optional mask of the dimensions that raise alerts, see DataUsageUtils.PREF_ALERT_DIMENSIONS
+    public static final String EXTRA_ALERT_DIMENSIONS = "alert_dimensions";
 
     @Override
-    public void onReceive(Context context, Intent intent) {
-        boolean enb = intent.getBooleanExtra("enable", false);
-        DataUsageUtils.enableDataUsageService(context, enb);
+    public void onReceive(final Context context, Intent intent) {
+        final boolean enb = intent.getBooleanExtra("enable", false);
+        final int dimensions = intent.getIntExtra(EXTRA_ALERT_DIMENSIONS, -1);
+        DataUsageReceiverExecutor.dispatch(this, TAG, new Runnable() {
+            @Override
+            public void run() {
+                if (dimensions > 0) {
+                    DataUsageUtils.setAlertDimensions(context, dimensions);
+                }
+                DataUsageUtils.enableDataUsageService(context, enb);
+            }
+        });
     }
 }
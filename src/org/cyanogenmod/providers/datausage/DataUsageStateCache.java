@@ -0,0 +1,730 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.NetworkPolicyManager;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static android.net.NetworkPolicyManager.POLICY_REJECT_ON_DATA;
+
+import cyanogenmod.providers.DataUsageContract;
+
+/**
+ * Process wide, in memory copy of the apps that have data usage warnings enabled, together
+ * with their detector state, so that the collector does not have to scan the provider on
+ * every cycle.
+ *
+ * The table is loaded once and then kept up to date incrementally: a ContentObserver records
+ * the uids changed by other writers (Settings, notification actions, package changes), and
+ * {@link #sync()} re-reads only those rows at the start of the next cycle. The collector's
+ * own writes are applied to the table directly and their notifications are ignored.
+ *
+ * The detector of the mobile home network lives in the datausage table itself, the other
+ * detectors (see {@link #detectorId(int, int)}) in the provider's detector table. All
+ * methods but the observer callback and {@link #checkpointNow(long)} must be called from
+ * the collector thread, which holds {@link #lock()} while it runs a cycle.
+ *
+ * Detector state changes are kept in memory, marked dirty, and written to the provider
+ * every FLUSH_PERIOD only. In between they are protected by a checkpoint file written every
+ * CHECKPOINT_PERIOD and on shutdown, which the first load of the process lays over the
+ * provider rows.
+ *
+ * A budget entry that goes away while the collector has the app's cellular data turned off
+ * (the app's warnings were disabled, or its counters were reset by another writer) turns
+ * the data back on, as the collector would not get to do it anymore.
+ */
+public class DataUsageStateCache {
+    private static final String TAG = DataUsageStateCache.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    // what a detector measures, on the network it belongs to
+    public static final int DIMENSION_TOTAL = 0;
+    public static final int DIMENSION_BACKGROUND = 1;
+    public static final int DIMENSION_UPLOAD = 2;
+    public static final int DIMENSION_COUNT = 3;
+    private static final int DIMENSION_BITS = 4;
+
+    // the collector has not run in this process yet
+    public static final int NETWORK_UNKNOWN = -2;
+
+    private static final long FLUSH_PERIOD = 30 * DateUtils.MINUTE_IN_MILLIS;
+    private static final long CHECKPOINT_PERIOD = 5 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static DataUsageStateCache sInstance;
+
+    private final Context mContext;
+    private final DataUsageCheckpoint mCheckpoint;
+    private boolean mRestored;
+    // held by the collector for a whole cycle
+    private final ReentrantLock mLock = new ReentrantLock();
+    private long mLastFlush;
+    private long mLastCheckpoint;
+
+    // rows changed by other writers since the last sync, guarded by mPendingUids
+    private final SparseBooleanArray mPendingUids = new SparseBooleanArray();
+    private boolean mReloadAll = true;
+
+    // the enabled apps and the state of their home network detector
+    private final DataUsageDetectorTable mHome = new DataUsageDetectorTable();
+    private final SparseArray<String> mExtras = new SparseArray<String>();
+    // the enabled apps that have a byte budget
+    private final DataUsageQuotaTable mQuotas = new DataUsageQuotaTable();
+    // the enabled apps that tune their monitoring policy
+    private final DataUsagePolicyTable mPolicies = new DataUsagePolicyTable();
+    // the other detectors, by detector id
+    private final SparseArray<DataUsageDetectorTable> mDetectors =
+            new SparseArray<DataUsageDetectorTable>();
+    private int mLastNetwork = NETWORK_UNKNOWN;
+    private int mLastDimensions;
+    private int mCycles;
+    // first app deferred by the last cycle over budget, where the next one starts
+    private int mResumeUid = Integer.MIN_VALUE;
+    // largest consumers, by detector id
+    private final SparseArray<DataUsageHeavyHitters> mHeavyHitters =
+            new SparseArray<DataUsageHeavyHitters>();
+    // device totals of the last network, at the last cycle that evaluated the detectors
+    private long mDeviceWatermark;
+    private long mDeviceAvg;
+    // device total of the mobile template at the last cellular cycle
+    private long mDeviceQuotaWatermark = DataUsageQuotaTable.NO_WATERMARK;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            onProviderChange(uri);
+        }
+    };
+
+    public static synchronized DataUsageStateCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DataUsageStateCache(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the id of the detector measuring dimension on network, one of the
+     * DataUsageUtils.NETWORK_* constants
+     */
+    public static int detectorId(int network, int dimension) {
+        return (network << DIMENSION_BITS) | dimension;
+    }
+
+    private DataUsageStateCache(Context context) {
+        this(context, new DataUsageCheckpoint(context.getApplicationContext().getFilesDir()));
+    }
+
+    DataUsageStateCache(Context context, DataUsageCheckpoint checkpoint) {
+        mContext = context.getApplicationContext();
+        mCheckpoint = checkpoint;
+        mLastFlush = SystemClock.elapsedRealtime();
+        mLastCheckpoint = mLastFlush;
+        mContext.getContentResolver().registerContentObserver(
+                DataUsageContract.CONTENT_URI, true, mObserver);
+    }
+
+    private void onProviderChange(Uri uri) {
+        if (uri != null && DataUsageProvider.SOURCE_COLLECTOR.equals(
+                uri.getQueryParameter(DataUsageProvider.PARAM_SOURCE))) {
+            // echo of our own writes
+            return;
+        }
+
+        int uid = -1;
+        List<String> segments = uri != null ? uri.getPathSegments() : null;
+        if (segments != null && segments.size() == 3 && "uid".equals(segments.get(1))) {
+            try {
+                uid = Integer.parseInt(segments.get(2));
+            } catch (NumberFormatException e) {
+                uid = -1;
+            }
+        }
+
+        if (DEBUG) {
+            Log.v(TAG, "onProviderChange: uri:" + uri + " uid:" + uid);
+        }
+
+        synchronized (mPendingUids) {
+            if (uid < 0) {
+                mReloadAll = true;
+            } else {
+                mPendingUids.put(uid, true);
+            }
+        }
+    }
+
+    /**
+     * Returns whether other writers changed the provider since the last sync
+     */
+    public boolean hasPendingChanges() {
+        synchronized (mPendingUids) {
+            return mReloadAll || mPendingUids.size() > 0;
+        }
+    }
+
+    /**
+     * Apply the changes made by other writers since the last call
+     */
+    public void sync() {
+        boolean reloadAll;
+        int[] uids;
+
+        synchronized (mPendingUids) {
+            reloadAll = mReloadAll;
+            uids = new int[reloadAll ? 0 : mPendingUids.size()];
+            for (int i = 0; i < uids.length; i++) {
+                uids[i] = mPendingUids.keyAt(i);
+            }
+            mPendingUids.clear();
+            mReloadAll = false;
+        }
+
+        if (reloadAll) {
+            reloadAll();
+        } else {
+            for (int uid : uids) {
+                reloadUid(uid);
+            }
+        }
+    }
+
+    private void reloadAll() {
+        Cursor cursor = mContext.getContentResolver().query(
+                DataUsageContract.CONTENT_URI,
+                null,
+                DataUsageContract.ENABLE + " = ? ",
+                new String [] { "1" },
+                DataUsageContract.UID
+        );
+        if (cursor == null) {
+            // try again on the next cycle
+            synchronized (mPendingUids) {
+                mReloadAll = true;
+            }
+            return;
+        }
+
+        // state not in the provider yet: the checkpoint on the first load, the dirty
+        // entries afterwards
+        SparseArray<DataUsageDetectorTable> unflushed = mRestored ? getDirty() :
+                mCheckpoint.read();
+        mRestored = true;
+
+        // the apps the collector turned off, in case their entry does not come back
+        SparseIntArray rejected = new SparseIntArray();
+        for (int index = 0; index < mQuotas.size(); index++) {
+            if ((mQuotas.getState(index) & DataUsageProvider.QUOTA_REJECTED) != 0) {
+                rejected.put(mQuotas.uidAt(index), mQuotas.getState(index));
+            }
+        }
+
+        mHome.clear(cursor.getCount());
+        mExtras.clear();
+        mQuotas.clear();
+        mPolicies.clear();
+        while (cursor.moveToNext()) {
+            putRow(cursor);
+        }
+        cursor.close();
+
+        for (int i = 0; i < mDetectors.size(); i++) {
+            mDetectors.valueAt(i).clear(0);
+        }
+        loadDetectors(null, null);
+        if (unflushed != null) {
+            overlay(unflushed);
+        }
+        for (int i = 0; i < rejected.size(); i++) {
+            int uid = rejected.keyAt(i);
+            int index = mQuotas.indexOfUid(uid);
+            if (index < 0) {
+                releaseQuota(uid, rejected.valueAt(i), true);
+            } else if ((mQuotas.getState(index) & DataUsageProvider.QUOTA_REJECTED) == 0) {
+                releaseQuota(uid, rejected.valueAt(i), false);
+            }
+        }
+
+        if (DEBUG) {
+            Log.v(TAG, "reloadAll: enabled:" + mHome.size());
+        }
+    }
+
+    private void reloadUid(int uid) {
+        Cursor cursor = mContext.getContentResolver().query(
+                DataUsageContract.CONTENT_URI,
+                null,
+                DataUsageContract.UID + " = ? ",
+                new String [] { String.valueOf(uid) },
+                null
+        );
+        if (cursor == null) {
+            synchronized (mPendingUids) {
+                mPendingUids.put(uid, true);
+            }
+            return;
+        }
+
+        if (cursor.moveToFirst() && cursor.getInt(DataUsageContract.COLUMN_OF_ENABLE) == 1) {
+            putRow(cursor);
+            loadDetectors(DataUsageContract.UID + " = ? ", new String[] { String.valueOf(uid) });
+        } else {
+            mHome.remove(uid);
+            mExtras.delete(uid);
+            int index = mQuotas.indexOfUid(uid);
+            if (index >= 0) {
+                releaseQuota(uid, mQuotas.getState(index), true);
+                mQuotas.remove(uid);
+            }
+            mPolicies.remove(uid);
+            for (int i = 0; i < mDetectors.size(); i++) {
+                mDetectors.valueAt(i).remove(uid);
+            }
+        }
+        cursor.close();
+    }
+
+    private void putRow(Cursor cursor) {
+        int uid = cursor.getInt(DataUsageContract.COLUMN_OF_UID);
+        int index = mHome.indexOfUid(uid);
+        if (index < 0 || !mHome.isDirty(index)) {
+            // a dirty entry is newer than the row
+            index = mHome.put(uid);
+            mHome.setState(index,
+                    cursor.getLong(DataUsageContract.COLUMN_OF_SLOW_AVG),
+                    cursor.getInt(DataUsageContract.COLUMN_OF_SLOW_SAMPLES),
+                    cursor.getLong(DataUsageContract.COLUMN_OF_FAST_AVG),
+                    cursor.getInt(DataUsageContract.COLUMN_OF_FAST_SAMPLES),
+                    cursor.getInt(DataUsageContract.COLUMN_OF_ACTIVE) > 0,
+                    cursor.getLong(DataUsageContract.COLUMN_OF_BYTES));
+        }
+        mExtras.put(uid, cursor.getString(DataUsageContract.COLUMN_OF_EXTRA));
+        putQuota(uid, cursor);
+        mPolicies.put(uid,
+                cursor.getInt(cursor.getColumnIndexOrThrow(DataUsageProvider.SENSITIVITY)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(DataUsageProvider.IDLE_BYTES)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(DataUsageProvider.MIN_SAMPLES)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(DataUsageProvider.QUIET_HOURS)));
+    }
+
+    private void putQuota(int uid, Cursor cursor) {
+        long dailyQuota = cursor.getLong(cursor.getColumnIndexOrThrow(
+                DataUsageProvider.DAILY_QUOTA));
+        long monthlyQuota = cursor.getLong(cursor.getColumnIndexOrThrow(
+                DataUsageProvider.MONTHLY_QUOTA));
+        int state = cursor.getInt(cursor.getColumnIndexOrThrow(DataUsageProvider.QUOTA_STATE));
+        int index = mQuotas.indexOfUid(uid);
+        if (index >= 0 && (state & DataUsageProvider.QUOTA_REJECTED) == 0) {
+            // reset by another writer
+            releaseQuota(uid, mQuotas.getState(index), false);
+        }
+        if (dailyQuota <= 0 && monthlyQuota <= 0 && state == 0) {
+            mQuotas.remove(uid);
+            return;
+        }
+        // an existing entry keeps its watermark, the counters are the collector's own writes
+        index = mQuotas.put(uid);
+        mQuotas.setQuota(index, dailyQuota, monthlyQuota,
+                cursor.getInt(cursor.getColumnIndexOrThrow(DataUsageProvider.CYCLE_DAY)));
+        mQuotas.setCounters(index,
+                cursor.getLong(cursor.getColumnIndexOrThrow(DataUsageProvider.DAILY_BYTES)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(DataUsageProvider.MONTHLY_BYTES)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(DataUsageProvider.DAILY_PERIOD)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(DataUsageProvider.MONTHLY_PERIOD)),
+                state);
+        mQuotas.setForecast(index,
+                cursor.getLong(cursor.getColumnIndexOrThrow(DataUsageProvider.FORECAST_LEVEL)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(DataUsageProvider.FORECAST_TREND)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(DataUsageProvider.FORECAST_TIME)));
+    }
+
+    /**
+     * Turn the cellular data of an app back on if the collector turned it off for its
+     * budget, as recorded in lastState. clearRow also drops the flag from the app's row, for
+     * an entry that goes away with the flag still set
+     */
+    private void releaseQuota(int uid, int lastState, boolean clearRow) {
+        if ((lastState & DataUsageProvider.QUOTA_REJECTED) == 0) {
+            return;
+        }
+        if (DEBUG) {
+            Log.v(TAG, "releaseQuota: uid:" + uid);
+        }
+        NetworkPolicyManager.from(mContext).removeUidPolicy(uid, POLICY_REJECT_ON_DATA);
+        DataUsageNotificationAggregator.getInstance(mContext).cancelQuotaReached(uid);
+        if (clearRow) {
+            ContentValues values = new ContentValues();
+            values.put(DataUsageProvider.QUOTA_STATE, 0);
+            mContext.getContentResolver().update(
+                    DataUsageProvider.buildCollectorUri(),
+                    values,
+                    DataUsageContract.UID + " = ? ",
+                    new String [] { String.valueOf(uid) }
+            );
+        }
+    }
+
+    private void loadDetectors(String selection, String[] selectionArgs) {
+        Cursor cursor = mContext.getContentResolver().query(
+                DataUsageProvider.buildDetectorUri(),
+                null,
+                selection,
+                selectionArgs,
+                null
+        );
+        if (cursor == null) {
+            return;
+        }
+
+        int uidColumn = cursor.getColumnIndexOrThrow(DataUsageContract.UID);
+        int detectorColumn = cursor.getColumnIndexOrThrow(DataUsageProvider.DETECTOR);
+        int activeColumn = cursor.getColumnIndexOrThrow(DataUsageContract.ACTIVE);
+        int bytesColumn = cursor.getColumnIndexOrThrow(DataUsageContract.BYTES);
+        int slowAvgColumn = cursor.getColumnIndexOrThrow(DataUsageContract.SLOW_AVG);
+        int slowSamplesColumn = cursor.getColumnIndexOrThrow(DataUsageContract.SLOW_SAMPLES);
+        int fastAvgColumn = cursor.getColumnIndexOrThrow(DataUsageContract.FAST_AVG);
+        int fastSamplesColumn = cursor.getColumnIndexOrThrow(DataUsageContract.FAST_SAMPLES);
+        while (cursor.moveToNext()) {
+            int uid = cursor.getInt(uidColumn);
+            if (!contains(uid)) {
+                continue;
+            }
+            DataUsageDetectorTable detector = getDetector(cursor.getInt(detectorColumn));
+            int index = detector.indexOfUid(uid);
+            if (index >= 0 && detector.isDirty(index)) {
+                continue;
+            }
+            index = detector.put(uid);
+            detector.setState(index,
+                    cursor.getLong(slowAvgColumn),
+                    cursor.getInt(slowSamplesColumn),
+                    cursor.getLong(fastAvgColumn),
+                    cursor.getInt(fastSamplesColumn),
+                    cursor.getInt(activeColumn) > 0,
+                    cursor.getLong(bytesColumn));
+        }
+        cursor.close();
+    }
+
+    /**
+     * Lay state newer than the provider rows over the tables, for the enabled apps, and mark
+     * it dirty so that it gets written
+     */
+    private void overlay(SparseArray<DataUsageDetectorTable> detectors) {
+        for (int i = 0; i < detectors.size(); i++) {
+            DataUsageDetectorTable source = detectors.valueAt(i);
+            DataUsageDetectorTable detector = getDetector(detectors.keyAt(i));
+            for (int index = 0; index < source.size(); index++) {
+                int uid = source.uidAt(index);
+                if (!contains(uid)) {
+                    continue;
+                }
+                int slot = detector.put(uid);
+                detector.setState(slot,
+                        source.getSlowAvg(index), source.getSlowSamples(index),
+                        source.getFastAvg(index), source.getFastSamples(index),
+                        source.isActive(index), source.getBytes(index));
+                detector.setDirty(slot, true);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the dirty entries, by detector id
+     */
+    private SparseArray<DataUsageDetectorTable> getDirty() {
+        SparseArray<DataUsageDetectorTable> dirty = new SparseArray<DataUsageDetectorTable>();
+        SparseArray<DataUsageDetectorTable> detectors = getDetectors();
+        for (int i = 0; i < detectors.size(); i++) {
+            DataUsageDetectorTable detector = detectors.valueAt(i);
+            DataUsageDetectorTable copy = null;
+            for (int index = 0; index < detector.size(); index++) {
+                if (!detector.isDirty(index)) {
+                    continue;
+                }
+                if (copy == null) {
+                    copy = new DataUsageDetectorTable();
+                    dirty.put(detectors.keyAt(i), copy);
+                }
+                copy.setState(copy.put(detector.uidAt(index)),
+                        detector.getSlowAvg(index), detector.getSlowSamples(index),
+                        detector.getFastAvg(index), detector.getFastSamples(index),
+                        detector.isActive(index), detector.getBytes(index));
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Returns all detectors, the home network total included, by detector id
+     */
+    public SparseArray<DataUsageDetectorTable> getDetectors() {
+        SparseArray<DataUsageDetectorTable> detectors =
+                new SparseArray<DataUsageDetectorTable>(mDetectors.size() + 1);
+        detectors.put(detectorId(DataUsageUtils.NETWORK_MOBILE, DIMENSION_TOTAL), mHome);
+        for (int i = 0; i < mDetectors.size(); i++) {
+            detectors.put(mDetectors.keyAt(i), mDetectors.valueAt(i));
+        }
+        return detectors;
+    }
+
+    /**
+     * Returns whether the dirty entries are due to be written to the provider
+     */
+    public boolean isFlushDue() {
+        return SystemClock.elapsedRealtime() - mLastFlush >= FLUSH_PERIOD;
+    }
+
+    /**
+     * Record that the dirty entries were written to the provider
+     */
+    public void onFlushed() {
+        mLastFlush = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Hold off checkpointNow() while the collector changes the state
+     */
+    public void lock() {
+        mLock.lock();
+    }
+
+    public void unlock() {
+        mLock.unlock();
+    }
+
+    /**
+     * Write the checkpoint right away from outside the collector thread, waiting at most
+     * timeout ms for a cycle in progress to end. Returns whether it was written, the last
+     * checkpoint is left in place otherwise
+     */
+    public boolean checkpointNow(long timeout) {
+        try {
+            if (!mLock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "checkpointNow: cycle still in progress after " + timeout + "ms");
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            return checkpoint(true);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Write the checkpoint if due, or right away if force, and returns whether it was
+     * written. Nothing is written before the state was loaded in this process, as it would
+     * replace the snapshot on disk with an empty one
+     */
+    public boolean checkpoint(boolean force) {
+        if (!mRestored) {
+            return false;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (!force && now - mLastCheckpoint < CHECKPOINT_PERIOD) {
+            return false;
+        }
+        mLastCheckpoint = now;
+        return mCheckpoint.write(getDetectors());
+    }
+
+    /**
+     * Returns the number of apps with warnings enabled
+     */
+    public int size() {
+        return mHome.size();
+    }
+
+    public int uidAt(int index) {
+        return mHome.uidAt(index);
+    }
+
+    public boolean contains(int uid) {
+        return mHome.indexOfUid(uid) >= 0;
+    }
+
+    /**
+     * Returns the state of a detector, the home network total being the datausage table
+     */
+    public DataUsageDetectorTable getDetector(int id) {
+        if (id == detectorId(DataUsageUtils.NETWORK_MOBILE, DIMENSION_TOTAL)) {
+            return mHome;
+        }
+        DataUsageDetectorTable detector = mDetectors.get(id);
+        if (detector == null) {
+            detector = new DataUsageDetectorTable();
+            mDetectors.put(id, detector);
+        }
+        return detector;
+    }
+
+    /**
+     * Returns the byte budgets of the enabled apps that have one
+     */
+    public DataUsageQuotaTable getQuotas() {
+        return mQuotas;
+    }
+
+    /**
+     * Returns the monitoring policies of the enabled apps that have one
+     */
+    public DataUsagePolicyTable getPolicies() {
+        return mPolicies;
+    }
+
+    /**
+     * Returns the sum of the idle bytes of the enabled apps, the most the device can move
+     * without any detector seeing a sample
+     */
+    public long getIdleBytes() {
+        long idleBytes = DataUsageEvaluator.MAX_IDLE_BW * mHome.size();
+        for (int index = 0; index < mPolicies.size(); index++) {
+            if (mPolicies.getIdleBytes(index) > 0) {
+                idleBytes += mPolicies.getIdleBytes(index) - DataUsageEvaluator.MAX_IDLE_BW;
+            }
+        }
+        return idleBytes;
+    }
+
+    /**
+     * Returns the sketch of the largest consumers of a detector
+     */
+    public DataUsageHeavyHitters getHeavyHitters(int id) {
+        DataUsageHeavyHitters heavyHitters = mHeavyHitters.get(id);
+        if (heavyHitters == null) {
+            heavyHitters = new DataUsageHeavyHitters();
+            mHeavyHitters.put(id, heavyHitters);
+        }
+        return heavyHitters;
+    }
+
+    /**
+     * Returns the number of cycles that evaluated the detectors, advancing it
+     */
+    public int nextCycle() {
+        return mCycles++;
+    }
+
+    /**
+     * Returns the index of the app the next cycle starts merging at, the first one deferred
+     * by a cycle over budget or the first app
+     */
+    public int getResumeIndex() {
+        int index = mHome.indexOfUid(mResumeUid);
+        if (index < 0) {
+            index = ~index;
+        }
+        return index < mHome.size() ? index : 0;
+    }
+
+    public void setResumeUid(int uid) {
+        mResumeUid = uid;
+    }
+
+    public void clearResume() {
+        mResumeUid = Integer.MIN_VALUE;
+    }
+
+    public String getExtra(int uid) {
+        return mExtras.get(uid);
+    }
+
+    public void setExtra(int uid, String extra) {
+        mExtras.put(uid, extra);
+    }
+
+    /**
+     * Returns the network collected by the previous cycle, or NETWORK_UNKNOWN
+     */
+    public int getLastNetwork() {
+        return mLastNetwork;
+    }
+
+    public void setLastNetwork(int network) {
+        mLastNetwork = network;
+    }
+
+    /**
+     * Returns the bytes the device moved on the last network, at the last cycle that
+     * evaluated the detectors
+     */
+    public long getDeviceWatermark() {
+        return mDeviceWatermark;
+    }
+
+    /**
+     * Returns the device total at the last cycle that counted cellular bytes, or
+     * DataUsageQuotaTable.NO_WATERMARK
+     */
+    public long getDeviceQuotaWatermark() {
+        return mDeviceQuotaWatermark;
+    }
+
+    public void setDeviceQuotaWatermark(long watermark) {
+        mDeviceQuotaWatermark = watermark;
+    }
+
+    /**
+     * Returns the average bytes the device moves per evaluated cycle, 0 while unknown
+     */
+    public long getDeviceAverage() {
+        return mDeviceAvg;
+    }
+
+    /**
+     * Record the device total of a cycle that evaluated the detectors, delta is the bytes
+     * moved since the previous one, or -1 if not comparable (e.g. after a network change)
+     */
+    public void onDeviceEvaluated(long total, long delta) {
+        mDeviceWatermark = total;
+        if (delta < 0) {
+            mDeviceAvg = 0;
+        } else if (mDeviceAvg == 0) {
+            mDeviceAvg = delta;
+        } else {
+            mDeviceAvg += (delta - mDeviceAvg) / 8;
+        }
+    }
+
+    /**
+     * Returns the mask of the dimensions evaluated by the previous cycle
+     */
+    public int getLastDimensions() {
+        return mLastDimensions;
+    }
+
+    public void setLastDimensions(int dimensions) {
+        mLastDimensions = dimensions;
+    }
+}
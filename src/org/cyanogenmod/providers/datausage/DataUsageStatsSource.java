@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.net.TrafficStats;
+
+/**
+ * Cheap byte counters of the monitored networks and of single uids, polled to decide whether
+ * a full collection cycle is worth running. Swapped for a stand-in to drive the collector's
+ * trigger without the network stats service.
+ */
+public interface DataUsageStatsSource {
+    /**
+     * Returns the bytes moved on network since boot, one of the DataUsageUtils.NETWORK_*
+     * constants, or a negative value if unknown
+     */
+    long getDeviceBytes(int network);
+
+    /**
+     * Returns the bytes moved by uid since boot on all networks, or a negative value if
+     * unknown
+     */
+    long getUidBytes(int uid);
+
+    /**
+     * Counters of the kernel interface statistics. The mobile counters still cost a binder
+     * call, for the stats service's list of mobile interfaces, but no stats session
+     */
+    class TrafficStatsSource implements DataUsageStatsSource {
+        @Override
+        public long getDeviceBytes(int network) {
+            long mobile = TrafficStats.getMobileRxBytes() + TrafficStats.getMobileTxBytes();
+            if (network != DataUsageUtils.NETWORK_WIFI_METERED) {
+                return mobile;
+            }
+            // there is no Wi-Fi counter, anything that is not mobile is close enough
+            return TrafficStats.getTotalRxBytes() + TrafficStats.getTotalTxBytes() - mobile;
+        }
+
+        @Override
+        public long getUidBytes(int uid) {
+            long rx = TrafficStats.getUidRxBytes(uid);
+            long tx = TrafficStats.getUidTxBytes(uid);
+            if (rx == TrafficStats.UNSUPPORTED || tx == TrafficStats.UNSUPPORTED) {
+                return -1;
+            }
+            return rx + tx;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.providers.datausage;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.UserInfo;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Kind of every user of the device, indexed by user id, so the collector can pick the collapse
+ * key of a stats entry without a UserManager call per entry.
+ *
+ * The table is a snapshot of UserManager.getUsers() and of our profiles, taken by the
+ * collector at the start of a cycle only after an ACTION_USER_* or ACTION_MANAGED_PROFILE_*
+ * broadcast marked it stale. A user id missing from the snapshot is a removed user.
+ */
+public class DataUsageUserTable {
+    private static final String TAG = DataUsageUserTable.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int KIND_REMOVED = 0;
+    // the current user, when it is one of our profiles
+    public static final int KIND_CURRENT = 1;
+    // one of our profiles, other than the current user
+    public static final int KIND_PROFILE = 2;
+    public static final int KIND_SECONDARY = 3;
+
+    private static DataUsageUserTable sInstance;
+
+    private final Context mContext;
+    private final UserManager mUserManager;
+
+    private volatile boolean mStale = true;
+    // only accessed on the collector's thread, but for dump()
+    private byte[] mKinds = new byte[0];
+    private int mUserCount;
+    private long mRefreshes;
+    private long mLastRefresh;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (DEBUG) {
+                Log.v(TAG, "onReceive: " + intent.getAction());
+            }
+            mStale = true;
+        }
+    };
+
+    public static synchronized DataUsageUserTable getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DataUsageUserTable(context);
+        }
+        return sInstance;
+    }
+
+    private DataUsageUserTable(Context context) {
+        mContext = context.getApplicationContext();
+        mUserManager = (UserManager) mContext.getSystemService(Context.USER_SERVICE);
+        // these are only sent to registered receivers, the table lives as long as the process
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_USER_ADDED);
+        filter.addAction(Intent.ACTION_USER_REMOVED);
+        filter.addAction(Intent.ACTION_USER_SWITCHED);
+        filter.addAction(Intent.ACTION_USER_INFO_CHANGED);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_ADDED);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_REMOVED);
+        mContext.registerReceiver(mReceiver, filter);
+    }
+
+    /**
+     * Take a new snapshot of the users if a broadcast changed them since the last one
+     */
+    public void refreshIfStale() {
+        if (!mStale) {
+            return;
+        }
+        // clear first, a broadcast arriving while we read the users triggers another refresh
+        mStale = false;
+
+        List<UserInfo> users = mUserManager.getUsers();
+        List<UserHandle> profiles = mUserManager.getUserProfiles();
+        int currentUserId = ActivityManager.getCurrentUser();
+
+        int maxId = currentUserId;
+        if (users != null) {
+            for (UserInfo user : users) {
+                maxId = Math.max(maxId, user.id);
+            }
+        }
+        byte[] kinds = new byte[maxId + 1];
+        if (users != null) {
+            for (UserInfo user : users) {
+                kinds[user.id] = KIND_SECONDARY;
+            }
+        }
+        if (profiles != null) {
+            for (UserHandle profile : profiles) {
+                int userId = profile.getIdentifier();
+                if (userId >= 0 && userId < kinds.length) {
+                    kinds[userId] = (byte) (userId == currentUserId ? KIND_CURRENT : KIND_PROFILE);
+                }
+            }
+        }
+        mKinds = kinds;
+        mUserCount = users != null ? users.size() : 0;
+        mRefreshes++;
+        mLastRefresh = SystemClock.elapsedRealtime();
+        if (DEBUG) {
+            Log.v(TAG, "refreshIfStale: users:" + mUserCount + " current:" + currentUserId);
+        }
+    }
+
+    /**
+     * Returns the KIND_* of the user, as of the last refresh
+     */
+    public int getKind(int userId) {
+        byte[] kinds = mKinds;
+        return userId >= 0 && userId < kinds.length ? kinds[userId] : KIND_REMOVED;
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("User table:");
+        writer.println("  users: " + mUserCount + " refreshes: " + mRefreshes +
+                " stale: " + mStale + (mRefreshes > 0 ? " refreshed " +
+                (SystemClock.elapsedRealtime() - mLastRefresh) / 1000 + "s ago" : ""));
+    }
+}
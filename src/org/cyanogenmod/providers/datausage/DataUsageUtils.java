@@ -39,6 +39,25 @@ public final class DataUsageUtils {
 
     public static final String PREF_FILE = "data_usage_service";
     public static final String PREF_ENABLE_DATA_USAGE_NOTIFY = "enable_data_usage_notify";
+    // mask of the usage dimensions that raise alerts, bit (1 << DataUsageStateCache.DIMENSION_*)
+    public static final String PREF_ALERT_DIMENSIONS = "alert_dimensions";
+    public static final int DEFAULT_ALERT_DIMENSIONS = 1 << DataUsageStateCache.DIMENSION_TOTAL;
+    // the device's mobile plan, as of the last cellular cycle: billing cycle start day and
+    // limit (0 without a limit) of its network policy, the running counter of the cycle and
+    // the usage forecast, see DataUsageProvider's per app columns of the same meaning
+    public static final String PREF_DEVICE_CYCLE_DAY = "device_cycle_day";
+    public static final String PREF_DEVICE_LIMIT = "device_limit";
+    public static final String PREF_DEVICE_CYCLE_BYTES = "device_cycle_bytes";
+    public static final String PREF_DEVICE_CYCLE_PERIOD = "device_cycle_period";
+    public static final String PREF_DEVICE_FORECAST_LEVEL = "device_forecast_level";
+    public static final String PREF_DEVICE_FORECAST_TREND = "device_forecast_trend";
+    public static final String PREF_DEVICE_FORECAST_TIME = "device_forecast_time";
+
+    // networks monitored with baselines of their own
+    public static final int NETWORK_NONE = -1;
+    public static final int NETWORK_MOBILE = 0;
+    public static final int NETWORK_ROAMING = 1;
+    public static final int NETWORK_WIFI_METERED = 2;
 
     /**
      * Returns a label for the user, in the form of "User: user name" or "Work profile".
@@ -140,20 +159,45 @@ public final class DataUsageUtils {
         SharedPreferences prefs = context.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
         prefs.edit().putBoolean(PREF_ENABLE_DATA_USAGE_NOTIFY, enable).apply();
         // start DataUsage service, but only if on qualified mobile network
-        // if the service is not started now, it will be started when the network state changes
-        // and the connected network is qualified for the DataUsage service
-        if (isDataUsageQualified(context)) {
+        // if the service is not started now, it will be started by DataUsageNetworkTracker
+        // once the connected network is qualified for the DataUsage service
+        if (!enable || DataUsageNetworkTracker.getInstance(context).isQualified()) {
             startDataUsageService(context, enable);
         }
     }
 
+    public static int getAlertDimensions(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
+        return prefs.getInt(PREF_ALERT_DIMENSIONS, DEFAULT_ALERT_DIMENSIONS);
+    }
+
+    /**
+     * Select the usage dimensions that raise alerts, e.g. only background or only upload
+     * spikes, taking effect on the next collection cycle
+     */
+    public static void setAlertDimensions(Context context, int dimensions) {
+        SharedPreferences prefs = context.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
+        prefs.edit().putInt(PREF_ALERT_DIMENSIONS, dimensions).apply();
+        if (DEBUG) {
+            Log.v(TAG, "setAlertDimensions: dimensions:" + dimensions);
+        }
+    }
+
     public static void startDataUsageService(Context context, boolean enable) {
         Intent dataUsageServiceIntent = new Intent(context, DataUsageService.class);
         PendingIntent alarmIntent = PendingIntent.getService(
                 context, DATAUSAGE_SERVICE_ALARM_ID, dataUsageServiceIntent, 0);
         AlarmManager alarmManager = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
 
-        if (enable) {
+        if (enable && DataUsageCycleTrigger.isEnabled()) {
+            // most alarms only poll the device counters, let them batch with other alarms
+            alarmManager.setInexactRepeating(
+                    AlarmManager.ELAPSED_REALTIME,
+                    DataUsageService.START_DELAY,
+                    DataUsageService.SAMPLE_PERIOD,
+                    alarmIntent
+            );
+        } else if (enable) {
             alarmManager.setRepeating(
                     AlarmManager.ELAPSED_REALTIME,
                     DataUsageService.START_DELAY,
@@ -162,6 +206,7 @@ public final class DataUsageUtils {
             );
         } else {
             alarmManager.cancel(alarmIntent);
+            DataUsageBurstMonitor.getInstance(context).stop();
         }
         if (DEBUG) {
             Log.v(TAG, "enableDataUsageService: enable:" + enable);
@@ -181,17 +226,29 @@ public final class DataUsageUtils {
 
     // determine if the currently connected network qualified for the DataUsage service
     public static boolean isDataUsageQualified(Context context) {
+        return getQualifiedNetwork(context) != NETWORK_NONE;
+    }
+
+    /**
+     * Returns the monitored network the device is connected to, one of NETWORK_MOBILE,
+     * NETWORK_ROAMING and NETWORK_WIFI_METERED, or NETWORK_NONE
+     */
+    public static int getQualifiedNetwork(Context context) {
         // only perform DataUsage collection for metered networks
         ConnectivityManager connectivityManager =
                 (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
         NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
-        if (activeNetworkInfo != null) {
-            boolean isConnected = activeNetworkInfo.isConnected();
-            boolean isMobile = activeNetworkInfo.getType() == ConnectivityManager.TYPE_MOBILE;
-            boolean qualified = isConnected && isMobile && connectivityManager.isActiveNetworkMetered();
-            return qualified;
-        } else {
-            return false;
+        if (activeNetworkInfo == null || !activeNetworkInfo.isConnected() ||
+                !connectivityManager.isActiveNetworkMetered()) {
+            return NETWORK_NONE;
+        }
+        switch (activeNetworkInfo.getType()) {
+            case ConnectivityManager.TYPE_MOBILE:
+                return activeNetworkInfo.isRoaming() ? NETWORK_ROAMING : NETWORK_MOBILE;
+            case ConnectivityManager.TYPE_WIFI:
+                return NETWORK_WIFI_METERED;
+            default:
+                return NETWORK_NONE;
         }
     }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.content.OperationApplicationException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Funnels all DataUsageProvider writes through a single writer thread.
+ *
+ * Callers on any thread submit a {@link Mutation} and block until the transaction containing
+ * it is committed, so a write is visible to the caller's subsequent reads once
+ * {@link #submit(Mutation)} returns. Meanwhile the writer drains everything that queued up
+ * while the previous transaction was committing and applies it as one group transaction, so
+ * concurrent writers (collector, package changes, notification actions) take the database
+ * lock once per group instead of once per row. No artificial delay is added: a group is at
+ * most MAX_GROUP_SIZE mutations, which bounds the latency of any single write.
+ *
+ * Exclusive mutations (applyBatch, bulkInsert) always run in a transaction of their own, so
+ * that a failing batch rolls back without affecting unrelated writes.
+ */
+public class DataUsageWriteQueue {
+    private static final String TAG = DataUsageWriteQueue.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_GROUP_SIZE = 128;
+
+    /**
+     * A unit of work applied to the database on the writer thread
+     */
+    public static abstract class Mutation<T> {
+        private final boolean mExclusive;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private T mResult;
+        private Exception mError;
+
+        public Mutation(boolean exclusive) {
+            mExclusive = exclusive;
+        }
+
+        protected abstract T apply(SQLiteDatabase db) throws OperationApplicationException;
+
+        private void run(SQLiteDatabase db) {
+            try {
+                mResult = apply(db);
+            } catch (OperationApplicationException e) {
+                mError = e;
+            } catch (RuntimeException e) {
+                mError = e;
+            }
+        }
+
+        private void fail(RuntimeException e) {
+            if (mError == null) {
+                mError = e;
+            }
+        }
+    }
+
+    /**
+     * Told when the writer starts and finishes a transaction, to keep read side caches coherent
+     */
+    public interface WriteListener {
+        void onWriteStarted();
+        void onWriteFinished();
+    }
+
+    private final SQLiteOpenHelper mOpenHelper;
+    private final WriteListener mListener;
+    private final LinkedBlockingQueue<Mutation<?>> mQueue =
+            new LinkedBlockingQueue<Mutation<?>>();
+    private final Thread mWriterThread;
+
+    // statistics, only written by the writer thread
+    private volatile long mGroupCount;
+    private volatile long mMutationCount;
+    private volatile int mLargestGroup;
+
+    public DataUsageWriteQueue(SQLiteOpenHelper openHelper, WriteListener listener) {
+        mOpenHelper = openHelper;
+        mListener = listener;
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                writerLoop();
+            }
+        }, TAG);
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * Apply the mutation and wait until it is committed
+     */
+    public <T> T submit(Mutation<T> mutation) throws OperationApplicationException {
+        if (Thread.currentThread() == mWriterThread) {
+            // nested write from a mutation that is already running, e.g. the operations
+            // of an applyBatch, it is part of the enclosing transaction
+            return mutation.apply(mOpenHelper.getWritableDatabase());
+        }
+
+        mQueue.add(mutation);
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mutation.mDone.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (mutation.mError instanceof OperationApplicationException) {
+            throw (OperationApplicationException) mutation.mError;
+        } else if (mutation.mError != null) {
+            throw (RuntimeException) mutation.mError;
+        }
+        return mutation.mResult;
+    }
+
+    private void writerLoop() {
+        ArrayList<Mutation<?>> group = new ArrayList<Mutation<?>>(MAX_GROUP_SIZE);
+        while (true) {
+            Mutation<?> first;
+            try {
+                first = mQueue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            group.add(first);
+            if (!first.mExclusive) {
+                // pick up everything that arrived while the previous group was committing
+                Mutation<?> next;
+                while (group.size() < MAX_GROUP_SIZE && (next = mQueue.peek()) != null &&
+                        !next.mExclusive) {
+                    group.add(mQueue.poll());
+                }
+            }
+
+            commitGroup(group, first.mExclusive);
+            group.clear();
+        }
+    }
+
+    private void commitGroup(ArrayList<Mutation<?>> group, boolean exclusive) {
+        int size = group.size();
+        mListener.onWriteStarted();
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < size; i++) {
+                    group.get(i).run(db);
+                }
+                // a failed batch must be rolled back, a failed single row write only
+                // affected its own statement
+                if (!exclusive || group.get(0).mError == null) {
+                    db.setTransactionSuccessful();
+                }
+            } finally {
+                db.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            // the transaction itself failed, nothing of this group was committed
+            Log.e(TAG, "Failed to commit " + size + " writes", e);
+            for (int i = 0; i < size; i++) {
+                group.get(i).fail(e);
+            }
+        } finally {
+            mListener.onWriteFinished();
+        }
+
+        mGroupCount++;
+        mMutationCount += size;
+        if (size > mLargestGroup) {
+            mLargestGroup = size;
+        }
+        if (DEBUG) {
+            Log.v(TAG, "committed group of " + size + " writes");
+        }
+
+        for (int i = 0; i < size; i++) {
+            group.get(i).mDone.countDown();
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        long groups = mGroupCount;
+        long mutations = mMutationCount;
+        writer.println("Write queue:");
+        writer.println("  transactions: " + groups);
+        writer.println("  writes: " + mutations);
+        writer.println("  writes per transaction: " +
+                (groups == 0 ? 0 : (float) mutations / groups));
+        writer.println("  largest group: " + mLargestGroup);
+        writer.println("  queued: " + mQueue.size());
+    }
+}
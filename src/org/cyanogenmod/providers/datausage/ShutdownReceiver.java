@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Process;
+
+/**
+ * Checkpoints the detector state before the device shuts down, as the state is only written
+ * to the provider every so often. The checkpoint is written before the broadcast completes,
+ * waiting a bounded time for a collection cycle in progress, so that power off does not
+ * catch it queued behind the cycle.
+ */
+public class ShutdownReceiver extends BroadcastReceiver {
+
+    // well within the time the shutdown sequence gives its broadcast
+    private static final long CHECKPOINT_TIMEOUT = 5 * 1000;
+
+    @Override
+    public void onReceive(final Context context, Intent intent) {
+        final PendingResult result = goAsync();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                try {
+                    DataUsageStateCache.getInstance(context).checkpointNow(CHECKPOINT_TIMEOUT);
+                } finally {
+                    result.finish();
+                }
+            }
+        }, ShutdownReceiver.class.getSimpleName()).start();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.test.AndroidTestCase;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Validation of the checkpoint file, and that a state not loaded yet never replaces it
+ */
+public class DataUsageCheckpointTest extends AndroidTestCase {
+    private static final int DETECTOR_ID = 3;
+    // magic, version, time
+    private static final int COUNT_OFFSET = 4 + 4 + 8;
+    // count, detector id
+    private static final int SIZE_OFFSET = COUNT_OFFSET + 4 + 4;
+
+    private File mDir;
+    private File mFile;
+    private DataUsageCheckpoint mCheckpoint;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "checkpoint_test");
+        mDir.mkdirs();
+        mFile = new File(mDir, DataUsageCheckpoint.FILE_NAME);
+        mFile.delete();
+        mCheckpoint = new DataUsageCheckpoint(mDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        mDir.delete();
+        super.tearDown();
+    }
+
+    private static SparseArray<DataUsageDetectorTable> buildDetectors() {
+        DataUsageDetectorTable detector = new DataUsageDetectorTable();
+        detector.setState(detector.put(10001), 1000, 20, 2000, 5, true, 123456);
+        detector.setState(detector.put(10002), 0, 0, 0, 0, false, 0);
+        SparseArray<DataUsageDetectorTable> detectors =
+                new SparseArray<DataUsageDetectorTable>();
+        detectors.put(DETECTOR_ID, detector);
+        return detectors;
+    }
+
+    private byte[] readFile() throws IOException {
+        byte[] data = new byte[(int) mFile.length()];
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                read += in.read(data, read, data.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private void writeFile(byte[] data, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(data, 0, length);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write data back with its CRC recomputed, so that only the payload checks can reject it
+     */
+    private void writeWithCrc(byte[] data) throws IOException {
+        int length = data.length - 8;
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        ByteBuffer.wrap(data).putLong(length, crc.getValue());
+        writeFile(data, data.length);
+    }
+
+    public void testRoundTrip() {
+        assertTrue(mCheckpoint.write(buildDetectors()));
+
+        SparseArray<DataUsageDetectorTable> detectors = mCheckpoint.read();
+        assertNotNull(detectors);
+        assertEquals(1, detectors.size());
+        DataUsageDetectorTable detector = detectors.get(DETECTOR_ID);
+        assertNotNull(detector);
+        assertEquals(2, detector.size());
+
+        int index = detector.indexOfUid(10001);
+        assertTrue(index >= 0);
+        assertTrue(detector.isActive(index));
+        assertEquals(123456, detector.getBytes(index));
+        assertEquals(1000, detector.getSlowAvg(index));
+        assertEquals(20, detector.getSlowSamples(index));
+        assertEquals(2000, detector.getFastAvg(index));
+        assertEquals(5, detector.getFastSamples(index));
+        assertFalse(detector.isActive(detector.indexOfUid(10002)));
+    }
+
+    public void testMissingFile() {
+        assertNull(mCheckpoint.read());
+    }
+
+    public void testCrcMismatch() throws IOException {
+        assertTrue(mCheckpoint.write(buildDetectors()));
+        byte[] data = readFile();
+        data[SIZE_OFFSET + 4] ^= 0x01;
+        writeFile(data, data.length);
+
+        assertNull(mCheckpoint.read());
+    }
+
+    public void testShorterThanCrc() throws IOException {
+        assertTrue(mCheckpoint.write(buildDetectors()));
+        writeFile(readFile(), 5);
+
+        assertNull(mCheckpoint.read());
+    }
+
+    public void testTruncatedPayloadWithValidCrc() throws IOException {
+        assertTrue(mCheckpoint.write(buildDetectors()));
+        byte[] data = readFile();
+        // cut the last entry in half and give the rest a matching CRC
+        byte[] truncated = new byte[data.length - 20];
+        System.arraycopy(data, 0, truncated, 0, truncated.length - 8);
+        writeWithCrc(truncated);
+
+        assertNull(mCheckpoint.read());
+    }
+
+    public void testNegativeCount() throws IOException {
+        assertTrue(mCheckpoint.write(buildDetectors()));
+        byte[] data = readFile();
+        ByteBuffer.wrap(data).putInt(COUNT_OFFSET, -1);
+        writeWithCrc(data);
+
+        assertNull(mCheckpoint.read());
+    }
+
+    public void testCountLargerThanFile() throws IOException {
+        assertTrue(mCheckpoint.write(buildDetectors()));
+        byte[] data = readFile();
+        // would allocate a huge SparseArray if it was trusted
+        ByteBuffer.wrap(data).putInt(COUNT_OFFSET, Integer.MAX_VALUE);
+        writeWithCrc(data);
+
+        assertNull(mCheckpoint.read());
+    }
+
+    public void testSizeLargerThanFile() throws IOException {
+        assertTrue(mCheckpoint.write(buildDetectors()));
+        byte[] data = readFile();
+        ByteBuffer.wrap(data).putInt(SIZE_OFFSET, 3);
+        writeWithCrc(data);
+
+        assertNull(mCheckpoint.read());
+    }
+
+    public void testNegativeSize() throws IOException {
+        assertTrue(mCheckpoint.write(buildDetectors()));
+        byte[] data = readFile();
+        ByteBuffer.wrap(data).putInt(SIZE_OFFSET, -1);
+        writeWithCrc(data);
+
+        assertNull(mCheckpoint.read());
+    }
+
+    public void testColdCacheKeepsCheckpoint() throws IOException {
+        assertTrue(mCheckpoint.write(buildDetectors()));
+        byte[] before = readFile();
+
+        // nothing was loaded in this process, the state is empty
+        DataUsageStateCache states = new DataUsageStateCache(getContext(), mCheckpoint);
+        assertFalse(states.checkpoint(true));
+        assertFalse(states.checkpointNow(1000));
+
+        assertTrue(Arrays.equals(before, readFile()));
+        DataUsageDetectorTable detector = mCheckpoint.read().get(DETECTOR_ID);
+        assertEquals(2, detector.size());
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.text.format.DateUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Threshold and backoff decisions of DataUsageCycleTrigger, on fake counters and clock
+ */
+public class DataUsageCycleTriggerTest extends TestCase {
+    private static final int NETWORK = DataUsageUtils.NETWORK_MOBILE;
+    private static final long THRESHOLD = 1000;
+
+    private FakeStatsSource mSource;
+    private TestTrigger mTrigger;
+
+    private static class TestTrigger extends DataUsageCycleTrigger {
+        long mNow = DateUtils.DAY_IN_MILLIS;
+
+        TestTrigger(DataUsageStatsSource source, boolean enabled) {
+            super(source, enabled);
+        }
+
+        @Override
+        long now() {
+            return mNow;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSource = new FakeStatsSource();
+        mSource.setDeviceBytes(NETWORK, 5000);
+        mTrigger = new TestTrigger(mSource, true);
+    }
+
+    // run the first cycle and arm the threshold
+    private void runFirstCycle() {
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+        mTrigger.onCycleFinished(NETWORK, THRESHOLD, 0, 0);
+    }
+
+    public void testFirstPollRunsCycle() {
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+    }
+
+    public void testBelowThresholdPolls() {
+        runFirstCycle();
+        mTrigger.mNow += DataUsageService.SAMPLE_PERIOD;
+        mSource.addDeviceBytes(NETWORK, THRESHOLD - 1);
+        assertFalse(mTrigger.shouldRunCycle(NETWORK, false));
+    }
+
+    public void testThresholdRunsCycle() {
+        runFirstCycle();
+        mTrigger.mNow += DataUsageService.SAMPLE_PERIOD;
+        mSource.addDeviceBytes(NETWORK, THRESHOLD - 1);
+        assertFalse(mTrigger.shouldRunCycle(NETWORK, false));
+        // the bytes below the threshold add up across polls
+        mTrigger.mNow += DataUsageService.SAMPLE_PERIOD;
+        mSource.addDeviceBytes(NETWORK, 1);
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+    }
+
+    public void testWatermarkMovesWithCycle() {
+        runFirstCycle();
+        mSource.addDeviceBytes(NETWORK, THRESHOLD);
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+        mTrigger.onCycleFinished(NETWORK, THRESHOLD, 0, 0);
+        assertFalse(mTrigger.shouldRunCycle(NETWORK, false));
+    }
+
+    public void testKeepThreshold() {
+        runFirstCycle();
+        mSource.addDeviceBytes(NETWORK, THRESHOLD);
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+        // an idle cycle leaves the armed threshold in place
+        mTrigger.onCycleFinished(NETWORK, DataUsageCycleTrigger.KEEP_THRESHOLD, 0, 0);
+        mSource.addDeviceBytes(NETWORK, THRESHOLD - 1);
+        assertFalse(mTrigger.shouldRunCycle(NETWORK, false));
+        mSource.addDeviceBytes(NETWORK, 1);
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+    }
+
+    public void testNoThreshold() {
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+        mTrigger.onCycleFinished(NETWORK, DataUsageCycleTrigger.NO_THRESHOLD, 0, 0);
+        mSource.addDeviceBytes(NETWORK, Integer.MAX_VALUE);
+        assertFalse(mTrigger.shouldRunCycle(NETWORK, false));
+    }
+
+    public void testLowerThreshold() {
+        runFirstCycle();
+        mTrigger.lowerThreshold(THRESHOLD / 2);
+        mSource.addDeviceBytes(NETWORK, THRESHOLD / 2);
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+    }
+
+    public void testNetworkChangeRunsCycle() {
+        runFirstCycle();
+        mSource.setDeviceBytes(DataUsageUtils.NETWORK_ROAMING, 5000);
+        assertTrue(mTrigger.shouldRunCycle(DataUsageUtils.NETWORK_ROAMING, false));
+    }
+
+    public void testCounterResetRunsCycle() {
+        runFirstCycle();
+        mSource.setDeviceBytes(NETWORK, 10);
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+    }
+
+    public void testUnknownCounterRunsCycle() {
+        runFirstCycle();
+        mSource.setDeviceBytes(NETWORK, -1);
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+    }
+
+    public void testForceAndRequestRunCycle() {
+        runFirstCycle();
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, true));
+        mTrigger.onCycleFinished(NETWORK, THRESHOLD, 0, 0);
+        mTrigger.requestCycle();
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+        // the request is consumed by the cycle
+        mTrigger.onCycleFinished(NETWORK, THRESHOLD, 0, 0);
+        assertFalse(mTrigger.shouldRunCycle(NETWORK, false));
+    }
+
+    public void testSafetySweep() {
+        runFirstCycle();
+        mTrigger.mNow += 15 * DateUtils.MINUTE_IN_MILLIS - 1;
+        assertFalse(mTrigger.shouldRunCycle(NETWORK, false));
+        mTrigger.mNow += 1;
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+    }
+
+    public void testDisabledRunsEveryCycle() {
+        mTrigger = new TestTrigger(mSource, false);
+        runFirstCycle();
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+    }
+
+    public void testOverrunBacksOff() {
+        runFirstCycle();
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, true));
+        mTrigger.onCycleFinished(NETWORK, THRESHOLD, DataUsageCycleTrigger.CYCLE_TIME_BUDGET,
+                0);
+        // at least a sample period, whatever asks for the cycle
+        mSource.addDeviceBytes(NETWORK, THRESHOLD);
+        mTrigger.requestCycle();
+        mTrigger.mNow += DataUsageService.SAMPLE_PERIOD - 1;
+        assertFalse(mTrigger.shouldRunCycle(NETWORK, true));
+        mTrigger.mNow += 1;
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+    }
+
+    public void testBackoffDoublesAndResets() {
+        runFirstCycle();
+        long backoff = DataUsageService.SAMPLE_PERIOD;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(mTrigger.shouldRunCycle(NETWORK, true));
+            mTrigger.onCycleFinished(NETWORK, THRESHOLD,
+                    DataUsageCycleTrigger.CYCLE_TIME_BUDGET, 0);
+            mTrigger.mNow += backoff - 1;
+            assertFalse(mTrigger.shouldRunCycle(NETWORK, true));
+            mTrigger.mNow += 1;
+            backoff *= 2;
+        }
+        // a cycle within budget ends the streak
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, true));
+        mTrigger.onCycleFinished(NETWORK, THRESHOLD, 0, 0);
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, true));
+        mTrigger.onCycleFinished(NETWORK, THRESHOLD, DataUsageCycleTrigger.CYCLE_TIME_BUDGET,
+                0);
+        mTrigger.mNow += DataUsageService.SAMPLE_PERIOD;
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, true));
+    }
+
+    public void testBackoffCapped() {
+        runFirstCycle();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(mTrigger.shouldRunCycle(NETWORK, true));
+            mTrigger.onCycleFinished(NETWORK, THRESHOLD,
+                    DataUsageCycleTrigger.CYCLE_TIME_BUDGET, 0);
+            mTrigger.mNow += 15 * DateUtils.MINUTE_IN_MILLIS - 1;
+            // a sample period doubled 4 times is past the cap
+            assertEquals(i < 4, mTrigger.shouldRunCycle(NETWORK, true));
+            // never longer than the safety sweep period
+            mTrigger.mNow += 1;
+        }
+    }
+
+    public void testDeferredAppsRunNextCycleAfterBackoff() {
+        runFirstCycle();
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, true));
+        mTrigger.onCycleFinished(NETWORK, THRESHOLD, 0, 1);
+        // no traffic, but the deferred apps still need their cycle
+        mTrigger.mNow += DataUsageService.SAMPLE_PERIOD - 1;
+        assertFalse(mTrigger.shouldRunCycle(NETWORK, false));
+        mTrigger.mNow += 1;
+        assertTrue(mTrigger.shouldRunCycle(NETWORK, false));
+        mTrigger.onCycleFinished(NETWORK, THRESHOLD, 0, 0);
+        mTrigger.mNow += DataUsageService.SAMPLE_PERIOD;
+        assertFalse(mTrigger.shouldRunCycle(NETWORK, false));
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Warnings of DataUsageEvaluator when the collector skips the samples below an app's trip
+ * bytes, the windows of its averages under a per-app policy, and its sharded computation
+ */
+public class DataUsageEvaluatorTest extends TestCase {
+    private static final String TAG = DataUsageEvaluatorTest.class.getSimpleName();
+    private static final int UID = 10001;
+    private static final long SLOW_AVG = 10000;
+    private static final int MAX_CYCLES = 60;
+
+    // detector state of the app, kept across cycles as the detector table would
+    private long mBaseline;
+    private long mCarried;
+    private long mSlowAvg;
+    private int mSlowSamples;
+    private long mFastAvg;
+    private int mFastSamples;
+    private boolean mActive;
+
+    private long mCounter;
+    private int mCycle;
+    private int mEvaluated;
+
+    private final DataUsageEvaluator mEvaluator = new DataUsageEvaluator();
+    private final DataUsagePolicyTable mPolicies = new DataUsagePolicyTable();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        resetDetector();
+    }
+
+    // a detector done learning, with both averages at SLOW_AVG
+    private void resetDetector() {
+        mCounter = 1000000;
+        mBaseline = mCounter;
+        mCarried = 0;
+        mSlowAvg = SLOW_AVG;
+        mSlowSamples = DataUsageEvaluator.MIN_SLOW_SAMPLE_COUNT;
+        mFastAvg = SLOW_AVG;
+        mFastSamples = DataUsageEvaluator.MIN_FAST_SAMPLE_COUNT;
+        mActive = false;
+        mCycle = 0;
+        mEvaluated = 0;
+    }
+
+    // copy the detector state and the policy of the app, the default one unless set, to the
+    // evaluator
+    private void load() {
+        DataUsageEvaluator e = mEvaluator;
+        e.reset(1, false);
+        e.uids[0] = UID;
+        e.baseline[0] = mBaseline;
+        e.carried[0] = mCarried;
+        e.bytes[0] = mCounter;
+        e.slowAvg[0] = mSlowAvg;
+        e.slowSamples[0] = mSlowSamples;
+        e.fastAvg[0] = mFastAvg;
+        e.fastSamples[0] = mFastSamples;
+        e.active[0] = mActive;
+        e.loadPolicy(0, mPolicies, 0);
+    }
+
+    /**
+     * Run a cycle in which the app moved bytes. It is evaluated if skip is false, or if the
+     * bytes it moved since its last evaluation reached its trip bytes, or if sampled and its
+     * turn in the rotating sample came. Returns whether it was warned
+     */
+    private boolean runCycle(long bytes, boolean skip, boolean sampled) {
+        mCounter += bytes;
+        load();
+        DataUsageEvaluator e = mEvaluator;
+        // the checks of the collector, but for the heavy hitters
+        e.evaluate[0] = !skip || e.getPendingBytes(0) >= e.getTripBytes(0) ||
+                (sampled && mCycle % DataUsageService.SAMPLE_STRIDE == 0);
+        e.compute();
+
+        mCycle++;
+        if (e.evaluate[0]) {
+            mEvaluated++;
+        }
+        mBaseline = e.bytes[0];
+        mCarried = e.getNextCarried(0);
+        mSlowAvg = e.slowAvg[0];
+        mSlowSamples = e.slowSamples[0];
+        mFastAvg = e.fastAvg[0];
+        mFastSamples = e.fastSamples[0];
+        mActive = e.active[0];
+        return e.warn[0];
+    }
+
+    private boolean runCycle(long bytes, boolean skip) {
+        return runCycle(bytes, skip, false);
+    }
+
+    // returns the cycle of the first warning of an app moving bytes every cycle, -1 if none
+    private int firstWarning(long bytes, boolean skip, boolean sampled) {
+        for (int cycle = 0; cycle < MAX_CYCLES; cycle++) {
+            if (runCycle(bytes, skip, sampled)) {
+                return cycle;
+            }
+        }
+        return -1;
+    }
+
+    public void testSustainedIncreaseBelowTripWarns() {
+        long perCycle = 3 * SLOW_AVG;
+        load();
+        // each cycle alone is below the trip bytes
+        assertTrue(perCycle < mEvaluator.getTripBytes(0));
+
+        assertTrue("warned when evaluated every cycle",
+                firstWarning(perCycle, false, false) >= 0);
+        resetDetector();
+        int cycle = firstWarning(perCycle, true, false);
+        assertTrue("warned when samples below the trip bytes are skipped", cycle >= 0);
+        assertTrue("skipped samples", mEvaluated < cycle + 1);
+    }
+
+    public void testSteadyUsageNeverWarns() {
+        assertEquals(-1, firstWarning(SLOW_AVG, true, false));
+        assertTrue("skipped samples", mEvaluated < MAX_CYCLES);
+        // the averages did not move, whatever the cycles skipped
+        assertEquals(SLOW_AVG, mSlowAvg);
+        assertEquals(SLOW_AVG, mFastAvg);
+    }
+
+    public void testSteadyUsageSampledNeverWarns() {
+        assertEquals(-1, firstWarning(SLOW_AVG, true, true));
+        assertEquals(SLOW_AVG, mSlowAvg);
+        assertEquals(SLOW_AVG, mFastAvg);
+    }
+
+    public void testSkippedBytesCarryOver() {
+        assertFalse(runCycle(SLOW_AVG, true));
+        assertFalse(runCycle(SLOW_AVG, true));
+        assertEquals(0, mEvaluated);
+        // the baseline moves every cycle, the skipped bytes are carried
+        assertEquals(mCounter, mBaseline);
+        assertEquals(2 * SLOW_AVG, mCarried);
+    }
+
+    public void testRemainingTripBytes() {
+        load();
+        long trip = mEvaluator.getTripBytes(0);
+        runCycle(SLOW_AVG, true);
+        assertEquals(trip - SLOW_AVG, mEvaluator.getRemainingTripBytes(0));
+        runCycle(SLOW_AVG, true);
+        assertEquals(trip - 2 * SLOW_AVG, mEvaluator.getRemainingTripBytes(0));
+    }
+
+    public void testEvaluationResetsCarried() {
+        runCycle(SLOW_AVG, true);
+        runCycle(SLOW_AVG, false);
+        assertEquals(mCounter, mBaseline);
+        assertEquals(0, mCarried);
+    }
+
+    public void testCounterResetMovesBaseline() {
+        runCycle(SLOW_AVG, true);
+        mCounter = 0;
+        runCycle(100, true);
+        assertEquals(100, mBaseline);
+        assertEquals(SLOW_AVG, mCarried);
+    }
+
+    public void testLoweredMinSamplesClampsWindows() {
+        // trained with the default minimums, then lowered below both of them
+        mPolicies.put(UID, 0, 0, 3, 0);
+        load();
+        assertEquals(3, mEvaluator.minSlowSamples[0]);
+        assertEquals(3, mEvaluator.minFastSamples[0]);
+        assertEquals(3, mEvaluator.slowSamples[0]);
+        assertEquals(3, mEvaluator.fastSamples[0]);
+
+        runCycle(4 * SLOW_AVG, false);
+
+        // averaged over the last 3 samples, not over the samples of the default minimums
+        assertEquals((2 * SLOW_AVG + 4 * SLOW_AVG) / 3, mSlowAvg);
+        assertEquals((2 * SLOW_AVG + 4 * SLOW_AVG) / 3, mFastAvg);
+        assertEquals(3, mSlowSamples);
+        assertEquals(3, mFastSamples);
+    }
+
+    public void testRaisedMinSamplesLearnsAgain() {
+        mPolicies.put(UID, 0, 0, 3, 0);
+        runCycle(SLOW_AVG, false);
+        assertEquals(3, mSlowSamples);
+
+        // back to the defaults, the window grows a sample at a time
+        mPolicies.remove(UID);
+        runCycle(SLOW_AVG, false);
+        assertEquals(4, mSlowSamples);
+        assertFalse(mActive);
+    }
+
+    // random apps in every state: learning, trained, warned, quiet, idle or not
+    private static void fill(DataUsageEvaluator e, int size, long seed) {
+        Random random = new Random(seed);
+        e.reset(size, false);
+        for (int i = 0; i < size; i++) {
+            e.uids[i] = 10000 + i;
+            e.evaluate[i] = random.nextInt(4) != 0;
+            e.baseline[i] = random.nextInt(1 << 20);
+            e.bytes[i] = e.baseline[i] + random.nextInt(1 << 16);
+            e.sensitivity[i] = DataUsageEvaluator.WARNING_PERCENTAGE;
+            e.idleBytes[i] = DataUsageEvaluator.MAX_IDLE_BW;
+            e.minSlowSamples[i] = DataUsageEvaluator.MIN_SLOW_SAMPLE_COUNT;
+            e.minFastSamples[i] = DataUsageEvaluator.MIN_FAST_SAMPLE_COUNT;
+            e.quiet[i] = random.nextInt(8) == 0;
+            e.slowSamples[i] = random.nextInt(DataUsageEvaluator.MIN_SLOW_SAMPLE_COUNT + 1);
+            e.fastSamples[i] = Math.min(e.slowSamples[i],
+                    DataUsageEvaluator.MIN_FAST_SAMPLE_COUNT);
+            e.slowAvg[i] = 1 + random.nextInt(1 << 15);
+            e.fastAvg[i] = 1 + random.nextInt(1 << 15);
+            e.active[i] = random.nextBoolean();
+        }
+    }
+
+    private static void assertSameResults(DataUsageEvaluator expected,
+            DataUsageEvaluator actual) {
+        int size = expected.size;
+        assertEquals(size, actual.size);
+        assertTrue(Arrays.equals(Arrays.copyOf(expected.result, size),
+                Arrays.copyOf(actual.result, size)));
+        assertTrue(Arrays.equals(Arrays.copyOf(expected.warn, size),
+                Arrays.copyOf(actual.warn, size)));
+        assertTrue(Arrays.equals(Arrays.copyOf(expected.warnFirstTime, size),
+                Arrays.copyOf(actual.warnFirstTime, size)));
+        assertTrue(Arrays.equals(Arrays.copyOf(expected.slowAvg, size),
+                Arrays.copyOf(actual.slowAvg, size)));
+        assertTrue(Arrays.equals(Arrays.copyOf(expected.slowSamples, size),
+                Arrays.copyOf(actual.slowSamples, size)));
+        assertTrue(Arrays.equals(Arrays.copyOf(expected.fastAvg, size),
+                Arrays.copyOf(actual.fastAvg, size)));
+        assertTrue(Arrays.equals(Arrays.copyOf(expected.fastSamples, size),
+                Arrays.copyOf(actual.fastSamples, size)));
+        assertTrue(Arrays.equals(Arrays.copyOf(expected.active, size),
+                Arrays.copyOf(actual.active, size)));
+    }
+
+    public void testShardedMatchesSingleShard() {
+        int size = 10007;
+        DataUsageEvaluator single = new DataUsageEvaluator();
+        fill(single, size, size);
+        single.computeSharded(1);
+
+        for (int shards = 2; shards <= 8; shards++) {
+            DataUsageEvaluator sharded = new DataUsageEvaluator();
+            fill(sharded, size, size);
+            sharded.computeSharded(shards);
+            assertSameResults(single, sharded);
+        }
+    }
+
+    public void testReusedEvaluatorMatchesFresh() {
+        // the collector reuses one evaluator across detectors of different sizes
+        DataUsageEvaluator reused = new DataUsageEvaluator();
+        fill(reused, 5000, 1);
+        reused.compute();
+        fill(reused, 3000, 2);
+        reused.compute();
+
+        DataUsageEvaluator fresh = new DataUsageEvaluator();
+        fill(fresh, 3000, 2);
+        fresh.computeSharded(1);
+        assertSameResults(fresh, reused);
+    }
+
+    /**
+     * Compute time of a cycle by population, on one shard and on the shards compute()
+     * picks, logged rather than asserted as it depends on the device
+     */
+    public void testComputeBenchmark() {
+        final int rounds = 20;
+        DataUsageEvaluator evaluator = new DataUsageEvaluator();
+        for (int size : new int[] { 1000, 10000, 50000 }) {
+            long single = 0;
+            long sharded = 0;
+            for (int round = 0; round < rounds; round++) {
+                fill(evaluator, size, round);
+                long start = SystemClock.elapsedRealtimeNanos();
+                evaluator.computeSharded(1);
+                single += SystemClock.elapsedRealtimeNanos() - start;
+
+                fill(evaluator, size, round);
+                start = SystemClock.elapsedRealtimeNanos();
+                evaluator.compute();
+                sharded += SystemClock.elapsedRealtimeNanos() - start;
+            }
+            Log.i(TAG, "compute " + size + " apps: single shard " +
+                    single / rounds / 1000 + "us, sharded " + sharded / rounds / 1000 + "us");
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.test.ProviderTestCase2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import cyanogenmod.providers.DataUsageContract;
+
+/**
+ * DataUsageProvider against a database of its own: keyset pages, the query cache dropping
+ * the result sets every kind of write makes stale, and exports spanning several pages
+ */
+public class DataUsageProviderTest extends ProviderTestCase2<DataUsageProviderTest.TestProvider> {
+
+    // _id, uid, bytes, fast avg of the rows inserted
+    private final ArrayList<long[]> mRows = new ArrayList<long[]>();
+
+    public static class TestProvider extends DataUsageProvider {
+        @Override
+        void onProcessStarted() {
+        }
+    }
+
+    public DataUsageProviderTest() {
+        super(TestProvider.class, DataUsageContract.DATAUSAGE_AUTHORITY);
+    }
+
+    private long insertRow(int uid, long bytes, long fastAvg) {
+        ContentValues values = new ContentValues();
+        values.put(DataUsageContract.UID, uid);
+        values.put(DataUsageContract.BYTES, bytes);
+        values.put(DataUsageContract.FAST_AVG, fastAvg);
+        Uri uri = getMockContentResolver().insert(DataUsageContract.CONTENT_URI, values);
+        long id = ContentUris.parseId(uri);
+        mRows.add(new long[] { id, uid, bytes, fastAvg });
+        return id;
+    }
+
+    /**
+     * Rows sharing their uid and their sort keys, so that page boundaries land on ties
+     */
+    private void insertTies() {
+        insertRow(1000, 500, 7);
+        insertRow(1000, 500, 7);
+        insertRow(1000, 500, 7);
+        insertRow(1001, 500, 7);
+        insertRow(1002, 900, 7);
+        insertRow(1002, 500, 3);
+        insertRow(1002, 500, 3);
+        insertRow(1003, 100, 3);
+    }
+
+    /**
+     * Returns the _ids of every page of the table, in order
+     */
+    private ArrayList<Long> readPages(String sort, int limit) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        String token = null;
+        int pages = 0;
+        do {
+            Cursor cursor = getMockContentResolver().query(
+                    DataUsageProvider.buildPageUri(sort, limit, token),
+                    new String[] { DataUsageContract._ID }, null, null, null);
+            assertNotNull(cursor);
+            try {
+                assertTrue(cursor.getCount() <= limit);
+                int column = cursor.getColumnIndexOrThrow(DataUsageContract._ID);
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(column));
+                }
+                token = cursor.getExtras().getString(DataUsageProvider.EXTRA_NEXT_PAGE_TOKEN);
+            } finally {
+                cursor.close();
+            }
+            // a token that does not move forward would never end
+            assertTrue(++pages <= mRows.size() + 1);
+        } while (token != null);
+        return ids;
+    }
+
+    /**
+     * Returns the _ids of the rows in the order of sort, tie broken by uid and _id
+     */
+    private ArrayList<Long> expectedOrder(final String sort) {
+        ArrayList<long[]> rows = new ArrayList<long[]>(mRows);
+        Collections.sort(rows, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                if (DataUsageProvider.SORT_UID.equals(sort)) {
+                    return a[1] != b[1] ? Long.compare(a[1], b[1]) : Long.compare(a[0], b[0]);
+                }
+                int key = DataUsageProvider.SORT_BYTES.equals(sort) ? 2 : 3;
+                if (a[key] != b[key]) {
+                    return Long.compare(b[key], a[key]);
+                }
+                return a[1] != b[1] ? Long.compare(b[1], a[1]) : Long.compare(b[0], a[0]);
+            }
+        });
+        ArrayList<Long> ids = new ArrayList<Long>(rows.size());
+        for (long[] row : rows) {
+            ids.add(row[0]);
+        }
+        return ids;
+    }
+
+    public void testPagesByUidSplitDuplicateUids() {
+        insertTies();
+        // every page size puts a boundary inside the rows of uid 1000 or 1002
+        for (int limit = 1; limit <= 4; limit++) {
+            assertEquals("limit " + limit, expectedOrder(DataUsageProvider.SORT_UID),
+                    readPages(DataUsageProvider.SORT_UID, limit));
+        }
+    }
+
+    public void testPagesByBytesSplitDuplicateKeys() {
+        insertTies();
+        for (int limit = 1; limit <= 4; limit++) {
+            assertEquals("limit " + limit, expectedOrder(DataUsageProvider.SORT_BYTES),
+                    readPages(DataUsageProvider.SORT_BYTES, limit));
+        }
+    }
+
+    public void testPagesByFastAvgSplitDuplicateKeys() {
+        insertTies();
+        for (int limit = 1; limit <= 4; limit++) {
+            assertEquals("limit " + limit, expectedOrder(DataUsageProvider.SORT_FAST_AVG),
+                    readPages(DataUsageProvider.SORT_FAST_AVG, limit));
+        }
+    }
+
+    public void testLastFullPageEndsOnEmptyPage() {
+        insertTies();
+        // the last page is full, so it still carries a token, to a page without rows
+        assertEquals(expectedOrder(DataUsageProvider.SORT_UID),
+                readPages(DataUsageProvider.SORT_UID, mRows.size()));
+    }
+
+    public void testInvalidToken() {
+        insertTies();
+        try {
+            getMockContentResolver().query(
+                    DataUsageProvider.buildPageUri(DataUsageProvider.SORT_UID, 2, "1000,5"),
+                    null, null, null, null);
+            fail("a token without _id was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Returns the enable values of the rows of uid, through the cached "uid = ?" lookup
+     */
+    private ArrayList<Integer> queryEnable(int uid) {
+        // twice, so that the second one is served from the cache if the first was stored
+        ArrayList<Integer> values = null;
+        for (int i = 0; i < 2; i++) {
+            Cursor cursor = getMockContentResolver().query(DataUsageContract.CONTENT_URI,
+                    new String[] { DataUsageContract.ENABLE },
+                    DataUsageContract.UID + " = ? ", new String[] { String.valueOf(uid) },
+                    null);
+            assertNotNull(cursor);
+            values = new ArrayList<Integer>();
+            try {
+                while (cursor.moveToNext()) {
+                    values.add(cursor.getInt(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return values;
+    }
+
+    private int queryCount() {
+        Cursor cursor = getMockContentResolver().query(DataUsageContract.CONTENT_URI,
+                new String[] { DataUsageContract._ID }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues enableValues(int uid, int enable) {
+        ContentValues values = new ContentValues();
+        values.put(DataUsageContract.UID, uid);
+        values.put(DataUsageContract.ENABLE, enable);
+        return values;
+    }
+
+    public void testCacheInvalidatedByInsert() {
+        assertEquals(0, queryEnable(2000).size());
+        int count = queryCount();
+
+        getMockContentResolver().insert(DataUsageContract.CONTENT_URI, enableValues(2000, 1));
+
+        assertEquals(1, queryEnable(2000).size());
+        // table wide result sets go with any write
+        assertEquals(count + 1, queryCount());
+    }
+
+    public void testCacheInvalidatedByUpdate() {
+        getMockContentResolver().insert(DataUsageContract.CONTENT_URI, enableValues(2000, 0));
+        assertEquals(0, (int) queryEnable(2000).get(0));
+
+        getMockContentResolver().update(DataUsageContract.CONTENT_URI, enableValues(2000, 1),
+                DataUsageContract.UID + " = ? ", new String[] { "2000" });
+
+        assertEquals(1, (int) queryEnable(2000).get(0));
+    }
+
+    public void testCacheInvalidatedByUpdateOfUidUri() {
+        getMockContentResolver().insert(DataUsageContract.CONTENT_URI, enableValues(2000, 0));
+        assertEquals(0, (int) queryEnable(2000).get(0));
+
+        ContentValues values = new ContentValues();
+        values.put(DataUsageContract.ENABLE, 1);
+        getMockContentResolver().update(DataUsageProvider.buildUidUri(2000), values, null,
+                null);
+
+        assertEquals(1, (int) queryEnable(2000).get(0));
+    }
+
+    public void testCacheInvalidatedByDelete() {
+        getMockContentResolver().insert(DataUsageContract.CONTENT_URI, enableValues(2000, 1));
+        assertEquals(1, queryEnable(2000).size());
+
+        getMockContentResolver().delete(DataUsageProvider.buildUidUri(2000), null, null);
+
+        assertEquals(0, queryEnable(2000).size());
+    }
+
+    public void testCacheInvalidatedByApplyBatch() throws Exception {
+        getMockContentResolver().insert(DataUsageContract.CONTENT_URI, enableValues(2000, 0));
+        assertEquals(0, (int) queryEnable(2000).get(0));
+        assertEquals(0, queryEnable(2001).size());
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(DataUsageContract.CONTENT_URI)
+                .withValue(DataUsageContract.ENABLE, 1)
+                .withSelection(DataUsageContract.UID + " = ? ", new String[] { "2000" })
+                .build());
+        operations.add(ContentProviderOperation.newInsert(DataUsageContract.CONTENT_URI)
+                .withValues(enableValues(2001, 1))
+                .build());
+        getMockContentResolver().applyBatch(DataUsageContract.DATAUSAGE_AUTHORITY, operations);
+
+        assertEquals(1, (int) queryEnable(2000).get(0));
+        assertEquals(1, queryEnable(2001).size());
+    }
+
+    public void testCacheInvalidatedByBulkInsert() {
+        assertEquals(0, queryEnable(2000).size());
+        int count = queryCount();
+
+        getMockContentResolver().bulkInsert(DataUsageContract.CONTENT_URI, new ContentValues[] {
+                enableValues(2000, 1), enableValues(2000, 0), enableValues(2001, 1)
+        });
+
+        assertEquals(2, queryEnable(2000).size());
+        assertEquals(count + 3, queryCount());
+    }
+
+    /**
+     * Returns the lines of an export, header included
+     */
+    private ArrayList<String> readExport(String table) throws IOException {
+        Uri uri = DataUsageContract.CONTENT_URI.buildUpon()
+                .appendPath(DataUsageProvider.EXPORT_PATH)
+                .appendQueryParameter(DataUsageProvider.PARAM_TABLE, table)
+                .build();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ParcelFileDescriptor.AutoCloseInputStream(getProvider().openFile(uri, "r")),
+                StandardCharsets.UTF_8));
+        ArrayList<String> lines = new ArrayList<String>();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private static int countLines(ArrayList<String> lines, String prefix) {
+        int count = 0;
+        for (String line : lines) {
+            if (line.startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void insertDetector(int uid, int detector) {
+        ContentValues values = new ContentValues();
+        values.put(DataUsageContract.UID, uid);
+        values.put(DataUsageProvider.DETECTOR, detector);
+        values.put(DataUsageContract.BYTES, 1);
+        getMockContentResolver().insert(DataUsageProvider.buildDetectorUri(), values);
+    }
+
+    public void testStateExportSpansPages() throws IOException {
+        int pageSize = DataUsageExporter.STATE_PAGE_SIZE;
+        int straddling = 20000;
+        ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+        for (int i = 0; i < pageSize - 1; i++) {
+            rows.add(enableValues(10000 + i, 1));
+        }
+        // the last row of the first page and the first two of the second one
+        for (int i = 0; i < 3; i++) {
+            rows.add(enableValues(straddling, 1));
+        }
+        for (int i = 1; i <= pageSize; i++) {
+            rows.add(enableValues(straddling + i, 1));
+        }
+        getMockContentResolver().bulkInsert(DataUsageContract.CONTENT_URI,
+                rows.toArray(new ContentValues[rows.size()]));
+
+        int home = DataUsageStateCache.detectorId(DataUsageUtils.NETWORK_MOBILE,
+                DataUsageStateCache.DIMENSION_TOTAL);
+        int background = DataUsageStateCache.detectorId(DataUsageUtils.NETWORK_MOBILE,
+                DataUsageStateCache.DIMENSION_BACKGROUND);
+        int upload = DataUsageStateCache.detectorId(DataUsageUtils.NETWORK_MOBILE,
+                DataUsageStateCache.DIMENSION_UPLOAD);
+        insertDetector(10000, background);
+        insertDetector(straddling, background);
+        insertDetector(straddling, upload);
+        insertDetector(straddling + pageSize, background);
+
+        ArrayList<String> lines = readExport(DataUsageProvider.TABLE_STATE);
+
+        assertEquals(1 + rows.size() + 4, lines.size());
+        assertEquals(3, countLines(lines, straddling + "," + home + ","));
+        // written once, with the first row of the uid
+        assertEquals(1, countLines(lines, straddling + "," + background + ","));
+        assertEquals(1, countLines(lines, straddling + "," + upload + ","));
+        assertEquals(1, countLines(lines, 10000 + "," + background + ","));
+        assertEquals(1, countLines(lines, (straddling + pageSize) + "," + background + ","));
+        // the detectors of a uid follow its rows
+        int index = lines.indexOf(straddling + "," + background + ",0,1,0,0,0,0");
+        assertTrue(index > 0);
+        assertTrue(lines.get(index - 1).startsWith(straddling + "," + home + ","));
+    }
+
+    public void testSamplesExportSpansPages() throws IOException {
+        int rows = DataUsageExporter.SAMPLES_PAGE_SIZE * 2 + 3;
+        ContentValues[] values = new ContentValues[rows];
+        for (int i = 0; i < rows; i++) {
+            values[i] = enableValues(10000 + i / 2, 1);
+            values[i].put(DataUsageContract.EXTRA, "{\"samples\":[" + i + "," + i + "]}");
+        }
+        getMockContentResolver().bulkInsert(DataUsageContract.CONTENT_URI, values);
+
+        ArrayList<String> lines = readExport(DataUsageProvider.TABLE_SAMPLES);
+
+        assertEquals(1 + rows * 2, lines.size());
+        for (int i = 0; i < rows; i++) {
+            assertTrue(lines.contains((10000 + i / 2) + ",1," + i));
+        }
+    }
+}
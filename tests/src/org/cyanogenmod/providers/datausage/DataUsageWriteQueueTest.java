@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.providers.datausage;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Group commit of DataUsageWriteQueue under contention
+ */
+public class DataUsageWriteQueueTest extends AndroidTestCase {
+    private static final String TABLE = "t";
+
+    private TestHelper mHelper;
+    private final AtomicInteger mTransactions = new AtomicInteger();
+    private DataUsageWriteQueue mQueue;
+
+    private static class TestHelper extends SQLiteOpenHelper {
+        TestHelper(Context context) {
+            // in memory
+            super(context, null, null, 1);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE + " (_id INTEGER PRIMARY KEY, v INTEGER);");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHelper = new TestHelper(getContext());
+        mQueue = new DataUsageWriteQueue(mHelper, new DataUsageWriteQueue.WriteListener() {
+            @Override
+            public void onWriteStarted() {
+                mTransactions.incrementAndGet();
+            }
+
+            @Override
+            public void onWriteFinished() {
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        super.tearDown();
+    }
+
+    private static DataUsageWriteQueue.Mutation<Long> insert(final int value) {
+        return new DataUsageWriteQueue.Mutation<Long>(false) {
+            @Override
+            protected Long apply(SQLiteDatabase db) {
+                ContentValues values = new ContentValues();
+                values.put("v", value);
+                return db.insert(TABLE, null, values);
+            }
+        };
+    }
+
+    private int count(String selection) {
+        Cursor cursor = mHelper.getReadableDatabase().query(TABLE, null, selection, null,
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testWriteVisibleOnReturn() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(mQueue.submit(insert(i)) > 0);
+            assertEquals(i + 1, count(null));
+        }
+    }
+
+    public void testConcurrentWritersAllCommitted() throws Exception {
+        final int threads = 8;
+        final int writes = 200;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        ArrayList<Thread> writers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int base = t * writes;
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < writes; i++) {
+                            if (mQueue.submit(insert(base + i)) < 0) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertEquals(threads * writes, count(null));
+        // writers queue up behind each other's commits and share transactions
+        assertTrue(mTransactions.get() <= threads * writes);
+    }
+
+    public void testWritesQueuedDuringCommitShareOneTransaction() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mQueue.submit(new DataUsageWriteQueue.Mutation<Void>(false) {
+                        @Override
+                        protected Void apply(SQLiteDatabase db) {
+                            blocked.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return null;
+                        }
+                    });
+                } catch (OperationApplicationException e) {
+                    fail(e.toString());
+                }
+            }
+        });
+        first.start();
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        // queue up behind the blocked transaction
+        final int queued = 16;
+        ArrayList<Thread> writers = new ArrayList<Thread>();
+        for (int i = 0; i < queued; i++) {
+            final int value = i;
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mQueue.submit(insert(value));
+                    } catch (OperationApplicationException e) {
+                        fail(e.toString());
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        // give the writers time to reach the queue
+        Thread.sleep(500);
+        release.countDown();
+        first.join();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(queued, count(null));
+        // the blocked transaction, then a single group for everything queued meanwhile
+        assertEquals(2, mTransactions.get());
+    }
+
+    public void testFailedBatchRollsBackAlone() throws Exception {
+        mQueue.submit(insert(1));
+        try {
+            mQueue.submit(new DataUsageWriteQueue.Mutation<Void>(true) {
+                @Override
+                protected Void apply(SQLiteDatabase db) throws OperationApplicationException {
+                    ContentValues values = new ContentValues();
+                    values.put("v", 2);
+                    db.insert(TABLE, null, values);
+                    throw new OperationApplicationException("batch failed");
+                }
+            });
+            fail("the batch error was not reported");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+        mQueue.submit(insert(3));
+
+        assertEquals(0, count("v = 2"));
+        assertEquals(2, count(null));
+    }
+}
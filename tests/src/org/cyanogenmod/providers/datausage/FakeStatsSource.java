@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.providers.datausage;
+
+import android.util.SparseLongArray;
+
+/**
+ * DataUsageStatsSource whose counters are set by the test
+ */
+class FakeStatsSource implements DataUsageStatsSource {
+    private final long[] mDeviceBytes = new long[] { 0, 0, 0 };
+    private final SparseLongArray mUidBytes = new SparseLongArray();
+    int mDeviceReads;
+
+    void setDeviceBytes(int network, long bytes) {
+        mDeviceBytes[network] = bytes;
+    }
+
+    void addDeviceBytes(int network, long bytes) {
+        mDeviceBytes[network] += bytes;
+    }
+
+    void setUidBytes(int uid, long bytes) {
+        mUidBytes.put(uid, bytes);
+    }
+
+    @Override
+    public long getDeviceBytes(int network) {
+        mDeviceReads++;
+        return mDeviceBytes[network];
+    }
+
+    @Override
+    public long getUidBytes(int uid) {
+        return mUidBytes.get(uid, -1);
+    }
+}